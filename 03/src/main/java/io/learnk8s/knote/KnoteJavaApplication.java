@@ -18,20 +18,32 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.web.servlet.resource.PathResourceResolver;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 @SpringBootApplication
 public class KnoteJavaApplication {
@@ -74,11 +86,51 @@ class KnoteConfig implements WebMvcConfigurer {
         registry
                 .addResourceHandler("/uploads/**")
                 .addResourceLocations("file:" + properties.getUploadDir())
-                .setCachePeriod(3600)
                 .resourceChain(true)
                 .addResolver(new PathResourceResolver());
     }
 
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry
+                .addInterceptor(new UploadsCacheInterceptor(properties))
+                .addPathPatterns("/uploads/**");
+    }
+
+}
+
+/**
+ * Uploads are stored under random UUID names and never change, so browsers and CDNs
+ * can keep them forever and revalidate with ETag/Last-Modified without reading the file.
+ */
+class UploadsCacheInterceptor implements HandlerInterceptor {
+
+    private final KnoteProperties properties;
+
+    UploadsCacheInterceptor(KnoteProperties properties) {
+        this.properties = properties;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        Path root = Paths.get(properties.getUploadDir()).toAbsolutePath().normalize();
+        Path file = root.resolve(request.getServletPath().substring("/uploads/".length())).normalize();
+        if (!file.startsWith(root) || !Files.isRegularFile(file)) {
+            //Let the resource handler answer with a 404
+            return true;
+        }
+        //Only for files that exist, so a 404 for a name that isn't uploaded yet isn't cached for a year
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl
+                .maxAge(properties.getUploadsMaxAge(), TimeUnit.SECONDS)
+                .cachePublic()
+                .getHeaderValue() + ", immutable");
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = "\"" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(lastModified) + "\"";
+        //Answers 304 and stops here when the client copy is still valid
+        return !new ServletWebRequest(request, response).checkNotModified(etag, lastModified);
+    }
+
 }
 
 @ConfigurationProperties(prefix = "knote")
@@ -86,9 +138,16 @@ class KnoteProperties {
     @Value("${uploadDir:/tmp/uploads/}")
     private String uploadDir;
 
+    @Value("${uploads.maxAge:31536000}")
+    private long uploadsMaxAge;
+
     public String getUploadDir() {
         return uploadDir;
     }
+
+    public long getUploadsMaxAge() {
+        return uploadsMaxAge;
+    }
 }
 
 @Controller
@@ -0,0 +1,95 @@
+package io.learnk8s.knote;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a whole image out of the in-memory and the filesystem image stores, and sending a stored file
+ * with transferTo, which is what Tomcat's sendfile does for the filesystem store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageStoreBenchmark {
+
+    private static final String NAME = "cat.png";
+
+    @Param({"65536", "1048576", "8388608"})
+    public int size;
+
+    private MemoryImageStore memory;
+    private FileSystemImageStore filesystem;
+    private Path dir;
+    private FileChannel sink;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] image = Samples.image(size);
+        memory = new MemoryImageStore();
+        memory.put(NAME, "image/png", new ByteArrayInputStream(image), image.length);
+        dir = Files.createTempDirectory("knote-bench-");
+        filesystem = new FileSystemImageStore();
+        filesystem.init(dir);
+        filesystem.put(NAME, "image/png", new ByteArrayInputStream(image), image.length);
+        sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        sink.close();
+        FileUtils.deleteDirectory(dir.toFile());
+    }
+
+    @Benchmark
+    public long memoryStream() throws Exception {
+        return copy(memory);
+    }
+
+    @Benchmark
+    public long filesystemStream() throws Exception {
+        return copy(filesystem);
+    }
+
+    @Benchmark
+    public long filesystemTransferTo() throws Exception {
+        try (FileChannel channel = FileChannel.open(filesystem.file(NAME), StandardOpenOption.READ)) {
+            long position = 0;
+            long length = channel.size();
+            while (position < length) {
+                position += channel.transferTo(position, length - position, sink);
+            }
+            return position;
+        }
+    }
+
+    private static long copy(ImageStore store) throws Exception {
+        try (InputStream in = store.open(NAME)) {
+            return IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM, new byte[ImageService.IMAGE_BUFFER_SIZE]);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.learnk8s.knote;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The byte path of getImageByName with an in-memory object standing in for MinIO:
+ * the fixed-buffer copy it uses now against buffering the whole object first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageStreamBenchmark {
+
+    @Param({"65536", "1048576", "8388608"})
+    public int size;
+
+    private byte[] image;
+
+    @Setup
+    public void setUp() {
+        image = Samples.image(size);
+    }
+
+    @Benchmark
+    public long streamCopy() throws Exception {
+        try (InputStream in = new ByteArrayInputStream(image)) {
+            return IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM, new byte[ImageService.IMAGE_BUFFER_SIZE]);
+        }
+    }
+
+    @Benchmark
+    public long bufferWhole() throws Exception {
+        try (InputStream in = new ByteArrayInputStream(image)) {
+            byte[] bytes = IOUtils.toByteArray(in);
+            NullOutputStream.NULL_OUTPUT_STREAM.write(bytes);
+            return bytes.length;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package io.learnk8s.knote;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FreeMarker rendering of index.ftl for a page holding the given number of notes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexTemplateBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int notes;
+
+    private Template template;
+    private Map<String, Object> model;
+
+    @Setup
+    public void setUp() throws Exception {
+        Configuration configuration = new Configuration(Configuration.VERSION_2_3_28);
+        configuration.setClassForTemplateLoading(getClass(), "/templates/");
+        configuration.setDefaultEncoding("UTF-8");
+        template = configuration.getTemplate("index.ftl");
+        model = new HashMap<>();
+        model.put("notes", Samples.notes(notes));
+    }
+
+    @Benchmark
+    public void render() throws Exception {
+        template.process(model, NullWriter.NULL_WRITER);
+    }
+}
@@ -0,0 +1,43 @@
+package io.learnk8s.knote;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Markdown to HTML the way saveNote and the re-render job do it, through {@link NoteRenderer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarkdownRenderBenchmark {
+
+    @Param({"short", "long"})
+    public String note;
+
+    private final NoteRenderer renderer = new NoteRenderer();
+    private String markdown;
+
+    @Setup
+    public void setUp() {
+        markdown = "short".equals(note) ? Samples.SHORT_NOTE : Samples.longNote();
+    }
+
+    @Benchmark
+    public String render() {
+        return renderer.render(markdown.trim());
+    }
+}
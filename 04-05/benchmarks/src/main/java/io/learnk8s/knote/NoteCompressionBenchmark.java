@@ -0,0 +1,46 @@
+package io.learnk8s.knote;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What notes.compression.enabled adds to every save and every read of a long note, through {@link NoteCompression}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NoteCompressionBenchmark {
+
+    private String html;
+    private byte[] deflated;
+
+    @Setup
+    public void setUp() {
+        html = new NoteRenderer().render(Samples.longNote());
+        deflated = NoteCompression.deflate(html.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public byte[] deflate() {
+        return NoteCompression.deflate(html.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String inflate() {
+        return NoteCompression.inflate(deflated);
+    }
+}
@@ -0,0 +1,38 @@
+package io.learnk8s.knote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Stand-ins for what Mongo and MinIO would return.
+ */
+class Samples {
+
+    static final String SHORT_NOTE = "Deploy **knote** with `kubectl apply -f kube/` ![](/img/cat.png?w=640)";
+
+    static String longNote() {
+        StringBuilder markdown = new StringBuilder("# Release notes\n\n");
+        for (int i = 0; i < 50; i++) {
+            markdown.append("- item ").append(i).append(" with *emphasis*, a [link](https://learnk8s.io/")
+                    .append(i).append(") and `code`\n");
+        }
+        markdown.append("\n> quoted paragraph with **bold** text\n\n```\nkubectl get pods\n```\n");
+        return markdown.toString();
+    }
+
+    static List<Note> notes(int count) {
+        List<Note> notes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            notes.add(new Note(String.format("%024x", i), "<p>Note " + i + " with <strong>some</strong> text "
+                    + "and an image <img src=\"/img/cat.png?w=640\" alt=\"\" /></p>\n"));
+        }
+        return notes;
+    }
+
+    static byte[] image(int size) {
+        byte[] image = new byte[size];
+        new Random(42).nextBytes(image);
+        return image;
+    }
+}
@@ -0,0 +1,189 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A fixed number of threads with a bounded queue in front of them, for one kind of slow request.
+ * Requests that find both full get a 503 straight away instead of waiting for a server thread.
+ */
+class Bulkhead {
+
+    //Downloads and uploads take as long as the client needs; the queue bounds how many wait
+    private static final long NO_TIMEOUT = -1;
+
+    private final String name;
+    private final int capacity;
+    private final Semaphore permits;
+    private final ThreadPoolTaskExecutor executor;
+    private final Counter rejected;
+
+    Bulkhead(String name, int threads, int queue, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.capacity = threads + queue;
+        //Admission is decided by the permits, so the executor itself never has to reject
+        this.permits = new Semaphore(capacity);
+        executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(name + "-");
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queue);
+        executor.initialize();
+
+        Tags tags = Tags.of("bulkhead", name);
+        rejected = meterRegistry.counter("knote.bulkhead.rejected", tags);
+        Gauge.builder("knote.bulkhead.active", executor, ThreadPoolTaskExecutor::getActiveCount)
+                .tags(tags).register(meterRegistry);
+        Gauge.builder("knote.bulkhead.queued", executor, pool -> pool.getThreadPoolExecutor().getQueue().size())
+                .tags(tags).register(meterRegistry);
+        Gauge.builder("knote.bulkhead.inflight", permits, available -> capacity - available.availablePermits())
+                .tags(tags).register(meterRegistry);
+        Gauge.builder("knote.bulkhead.capacity", () -> capacity).tags(tags).register(meterRegistry);
+    }
+
+    /**
+     * Runs a servlet request's work on the bulkhead's threads, or answers 503 when it is full.
+     */
+    <T> WebAsyncTask<T> submit(Callable<T> work) {
+        acquire();
+        AtomicBoolean refused = new AtomicBoolean();
+        return new WebAsyncTask<>(NO_TIMEOUT, new RefusingExecutor(refused), () -> {
+            try {
+                if (refused.get()) {
+                    rejected.increment();
+                    throw unavailable();
+                }
+                return work.call();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Runs work on the bulkhead's threads and waits at most timeout milliseconds for it, or answers 503 when it is full.
+     * Work that is still queued when the time is up is dropped; work already running keeps its thread
+     * until it returns, so it has to watch its own deadline.
+     */
+    <T> T call(Callable<T> work, long timeout) throws Exception {
+        acquire();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    if (!result.isDone()) {
+                        result.complete(work.call());
+                    }
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (TaskRejectedException e) {
+            //The permit was free but the pool still had the last task's thread, or is shutting down
+            permits.release();
+            rejected.increment();
+            throw unavailable();
+        }
+        try {
+            return result.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.completeExceptionally(e);
+            throw e;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Counts a reactive request against the bulkhead until it completes, is cancelled or fails.
+     * Reactive work keeps running on its own scheduler; only the number of requests in flight is bounded.
+     */
+    <T> Mono<T> guard(Mono<T> work) {
+        return Mono.defer(() -> {
+            acquire();
+            return work.doFinally(signal -> permits.release());
+        });
+    }
+
+    private void acquire() {
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            throw unavailable();
+        }
+    }
+
+    private ResponseStatusException unavailable() {
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many " + name + " in progress");
+    }
+
+    /**
+     * Hands tasks to the pool, and runs the ones it refuses on the calling thread with the refused flag set.
+     * Spring answers 500 when the executor of a WebAsyncTask throws, and never calls the task, so its permit would leak;
+     * run inline, the task only gives the permit back and completes the request with a 503.
+     */
+    private class RefusingExecutor implements AsyncTaskExecutor {
+
+        private final AtomicBoolean refused;
+
+        RefusingExecutor(AtomicBoolean refused) {
+            this.refused = refused;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            submit(task);
+        }
+
+        @Override
+        public void execute(Runnable task, long startTimeout) {
+            submit(task);
+        }
+
+        @Override
+        public Future<?> submit(Runnable task) {
+            return submit(() -> {
+                task.run();
+                return null;
+            });
+        }
+
+        @Override
+        public <T> Future<T> submit(Callable<T> task) {
+            try {
+                return executor.submit(task);
+            } catch (TaskRejectedException e) {
+                //A worker can give its permit back a moment before it takes the next task from the queue,
+                //and a pool that is shutting down refuses everything
+                refused.set(true);
+                FutureTask<T> inline = new FutureTask<>(task);
+                inline.run();
+                return inline;
+            }
+        }
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,54 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Keeps image downloads, uploads and markdown rendering apart from each other and from the server threads that
+ * render pages, so a burst of any of them can't make the note pages time out.
+ */
+@Component
+class Bulkheads {
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Bulkhead images;
+    private Bulkhead uploads;
+    private Bulkhead renders;
+
+    @PostConstruct
+    public void init() {
+        images = new Bulkhead("images", properties.getBulkheadImagesThreads(),
+                properties.getBulkheadImagesQueue(), meterRegistry);
+        uploads = new Bulkhead("uploads", properties.getBulkheadUploadsThreads(),
+                properties.getBulkheadUploadsQueue(), meterRegistry);
+        renders = new Bulkhead("renders", properties.getBulkheadRendersThreads(),
+                properties.getBulkheadRendersQueue(), meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        images.shutdown();
+        uploads.shutdown();
+        renders.shutdown();
+    }
+
+    Bulkhead getImages() {
+        return images;
+    }
+
+    Bulkhead getUploads() {
+        return uploads;
+    }
+
+    Bulkhead getRenders() {
+        return renders;
+    }
+}
@@ -0,0 +1,185 @@
+package io.learnk8s.knote;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import org.bson.BsonTimestamp;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Lets a browser read its own notes back when reads go to secondaries (mongo.read.preference).
+ * Notes are written in causally consistent sessions, and after a save the browser is given the operation time
+ * of the newest write in a cookie. A read that brings the cookie back runs in a session that starts at that time,
+ * so the secondary waits until it has caught up before answering, whichever replica of the app serves it.
+ * The cookie is signed with mongo.causal.key, so a client can't make reads wait for a time it made up.
+ */
+@Component
+class CausalSessions {
+
+    static final String COOKIE = "knote-optime";
+
+    private static final String HMAC = "HmacSHA256";
+    private static final int CLOCK_SKEW = 10;
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private MongoDbFactory mongoDbFactory;
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private final AtomicReference<BsonTimestamp> lastWrite = new AtomicReference<>();
+    private SecretKeySpec key;
+
+    @PostConstruct
+    public void init() {
+        byte[] secret = properties.getMongoCausalKey().getBytes(StandardCharsets.UTF_8);
+        if (secret.length == 0) {
+            //Only this replica can check its cookies, so reads served by the others don't wait
+            secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            if (isEnabled()) {
+                System.out.println("> mongo.causal.key is not set, causal reads only work on the replica that saved the note");
+            }
+        }
+        key = new SecretKeySpec(secret, HMAC);
+    }
+
+    /**
+     * Off when reads go to the primary, which always has every acknowledged write.
+     */
+    boolean isEnabled() {
+        return properties.isMongoCausalEnabled() && !"primary".equalsIgnoreCase(properties.getMongoReadPreference());
+    }
+
+    <T> T write(Function<MongoOperations, T> write) {
+        if (!isEnabled()) {
+            return write.apply(mongoTemplate);
+        }
+        try (ClientSession session = start()) {
+            try {
+                return write.apply(mongoTemplate.withSession(session));
+            } finally {
+                //Part of a bulk write may have been applied even when it failed
+                advance(session);
+            }
+        }
+    }
+
+    /**
+     * Hands the browser the time of the newest write made through this instance, which covers its own.
+     */
+    void remember(HttpServletResponse response) {
+        BsonTimestamp written = lastWrite.get();
+        if (!isEnabled() || written == null) {
+            return;
+        }
+        String time = Long.toHexString(written.getValue());
+        Cookie cookie = new Cookie(COOKIE, time + "." + sign(time));
+        cookie.setPath("/");
+        cookie.setHttpOnly(true);
+        cookie.setMaxAge(properties.getMongoCausalWindow());
+        response.addCookie(cookie);
+    }
+
+    /**
+     * True when the browser saved a note recently enough that a plain read from a secondary might miss it.
+     */
+    boolean hasWritten(HttpServletRequest request) {
+        return isEnabled() && verify(cookie(request)) != null;
+    }
+
+    <T> T read(HttpServletRequest request, Function<MongoOperations, T> read) {
+        BsonTimestamp written = isEnabled() ? verify(cookie(request)) : null;
+        if (written == null) {
+            return read.apply(mongoTemplate);
+        }
+        try (ClientSession session = start()) {
+            session.advanceOperationTime(written);
+            return read.apply(mongoTemplate.withSession(session));
+        }
+    }
+
+    /**
+     * The operation time in a cookie this app signed within the causal window, or null for anything else.
+     */
+    private BsonTimestamp verify(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split("\\.", 2);
+        if (parts.length != 2 || !MessageDigest.isEqual(sign(parts[0]).getBytes(StandardCharsets.US_ASCII),
+                parts[1].getBytes(StandardCharsets.US_ASCII))) {
+            //Not a cookie we made: read without waiting
+            return null;
+        }
+        BsonTimestamp written;
+        try {
+            written = new BsonTimestamp(Long.parseUnsignedLong(parts[0], 16));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        //Operation times come from the primary's clock, so a little skew is allowed
+        long seconds = System.currentTimeMillis() / 1000;
+        if (written.getTime() < seconds - properties.getMongoCausalWindow() - CLOCK_SKEW) {
+            //The browser should have dropped it, and a plain read has long seen the write
+            return null;
+        }
+        //Even a signed time never makes a read wait past the newest write this replica knows of, or past now
+        BsonTimestamp now = new BsonTimestamp((int) (seconds + CLOCK_SKEW), 0);
+        BsonTimestamp last = lastWrite.get();
+        BsonTimestamp cap = last != null && last.compareTo(now) > 0 ? last : now;
+        return written.compareTo(cap) > 0 ? cap : written;
+    }
+
+    private String sign(String time) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(key);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(time.getBytes(StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ClientSession start() {
+        return mongoDbFactory.getSession(ClientSessionOptions.builder().causallyConsistent(true).build());
+    }
+
+    private void advance(ClientSession session) {
+        BsonTimestamp written = session.getOperationTime();
+        if (written == null) {
+            return;
+        }
+        lastWrite.accumulateAndGet(written, (last, next) -> last == null || next.compareTo(last) > 0 ? next : last);
+    }
+
+    private static String cookie(HttpServletRequest request) {
+        if (request == null || request.getCookies() == null) {
+            return null;
+        }
+        for (Cookie cookie : request.getCookies()) {
+            if (COOKIE.equals(cookie.getName())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+}
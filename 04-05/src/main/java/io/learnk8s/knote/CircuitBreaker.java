@@ -0,0 +1,121 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * Stops calling a dependency after a number of failures in a row and answers 503 straight away instead,
+ * until a single trial call after a pause shows the dependency is back.
+ * Only I/O errors count as failures; an error the dependency answered with means it is up.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Counter rejected;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    CircuitBreaker(String name, int failureThreshold, long openMillis, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+
+        Tags tags = Tags.of("breaker", name);
+        rejected = meterRegistry.counter("knote.breaker.rejected", tags);
+        Gauge.builder("knote.breaker.state", this, breaker -> breaker.getState().ordinal())
+                .tags(tags).register(meterRegistry);
+    }
+
+    <T> T call(Callable<T> call) throws Exception {
+        if (!allow()) {
+            rejected.increment();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, name + " is unavailable");
+        }
+        T result;
+        try {
+            result = call.call();
+        } catch (Exception e) {
+            if (isFailure(e)) {
+                onFailure(e);
+            } else {
+                onSuccess();
+            }
+            throw e;
+        }
+        onSuccess();
+        return result;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private synchronized boolean allow() {
+        switch (state) {
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+                return true;
+            case HALF_OPEN:
+                //Everything else keeps failing fast until the trial call is back
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            System.out.println("> Circuit breaker " + name + " closed");
+        }
+        state = State.CLOSED;
+        failures = 0;
+        trialInFlight = false;
+    }
+
+    private synchronized void onFailure(Exception e) {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            System.out.println("> Circuit breaker " + name + " open after " + failures + " failure(s): " + e);
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            trialInFlight = false;
+        }
+    }
+
+    private static boolean isFailure(Exception e) {
+        //Other 503s, such as a client that isn't connected yet, say nothing new about the dependency
+        if (e instanceof ResponseStatusException) {
+            return false;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,150 @@
+package io.learnk8s.knote;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Keeps images as files under images.store.dir, for single-node deployments.
+ * The controllers send the files with sendfile, so image bytes never pass through the heap.
+ */
+@Component
+@ConditionalOnProperty(name = "images.store", havingValue = "filesystem")
+class FileSystemImageStore implements ImageStore {
+
+    @Autowired
+    private KnoteProperties properties;
+
+    private Path dir;
+
+    @PostConstruct
+    public void init() throws IOException {
+        init(Paths.get(properties.getImagesStoreDir()));
+    }
+
+    void init(Path dir) throws IOException {
+        this.dir = dir.toAbsolutePath().normalize();
+        Files.createDirectories(this.dir);
+        System.out.println("> Images stored in " + this.dir);
+    }
+
+    @Override
+    public String getName() {
+        return "filesystem";
+    }
+
+    @Override
+    public Stat stat(String name) throws Exception {
+        Path file = file(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw notFound(name);
+        }
+        if (!attributes.isRegularFile()) {
+            throw notFound(name);
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        //Files have no metadata of their own, so the type comes from the extension
+        String contentType = MediaTypeFactory.getMediaType(file.getFileName().toString())
+                .map(MediaType::toString).orElse(null);
+        return new Stat(attributes.size(), contentType,
+                Long.toHexString(lastModified) + "-" + Long.toHexString(attributes.size()), lastModified);
+    }
+
+    @Override
+    public InputStream open(String name) throws Exception {
+        try {
+            return Files.newInputStream(file(name));
+        } catch (NoSuchFileException e) {
+            throw notFound(name);
+        }
+    }
+
+    @Override
+    public InputStream open(String name, long start, long length) throws Exception {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file(name), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw notFound(name);
+        }
+        return new BoundedInputStream(Channels.newInputStream(channel.position(start)), length);
+    }
+
+    @Override
+    public void put(String name, String contentType, InputStream body, long length) throws Exception {
+        //Readers never see a partly written file
+        Path tmp = Files.createTempFile(dir, "put-", ".tmp");
+        try {
+            Files.copy(body, tmp, StandardCopyOption.REPLACE_EXISTING);
+            publish(tmp, file(name));
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public void copy(String from, String to) throws Exception {
+        Path tmp = Files.createTempFile(dir, "copy-", ".tmp");
+        try {
+            Files.copy(file(from), tmp, StandardCopyOption.REPLACE_EXISTING);
+            publish(tmp, file(to));
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public void move(String from, String to) throws Exception {
+        publish(file(from), file(to));
+    }
+
+    @Override
+    public void remove(String name) throws Exception {
+        Files.deleteIfExists(file(name));
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    @Override
+    public Path file(String name) {
+        //Names come from URLs, so they must not lead out of the directory
+        Path file = dir.resolve(name).normalize();
+        if (!file.startsWith(dir) || file.equals(dir)) {
+            throw notFound(name);
+        }
+        return file;
+    }
+
+    private static void publish(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ResponseStatusException notFound(String name) {
+        return new ResponseStatusException(HttpStatus.NOT_FOUND, "Image " + name + " not found");
+    }
+}
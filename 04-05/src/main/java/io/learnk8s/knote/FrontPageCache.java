@@ -0,0 +1,108 @@
+package io.learnk8s.knote;
+
+import freemarker.template.Configuration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.ui.freemarker.FreeMarkerTemplateUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the rendered first page of notes in memory until a note is saved.
+ * Saves on other replicas arrive through {@link NotesChangeListener}. Without it, or while it is reconnecting,
+ * the page also expires after notes.cache.ttl.
+ */
+@Component
+class FrontPageCache {
+
+    static class Page {
+        private final String html;
+        private final String older;
+        private final long generation;
+        private final long renderedAt;
+
+        Page(String html, String older, long generation) {
+            this.html = html;
+            this.older = older;
+            this.generation = generation;
+            this.renderedAt = System.currentTimeMillis();
+        }
+
+        String getHtml() {
+            return html;
+        }
+
+        /**
+         * Id of the last note on the page when there are older notes, otherwise null.
+         */
+        String getOlder() {
+            return older;
+        }
+    }
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private Configuration freemarker;
+    @Autowired
+    private NotesChangeListener changeListener;
+
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Page page;
+
+    boolean isEnabled() {
+        return properties.isNotesCacheEnabled();
+    }
+
+    Page get(Supplier<List<Note>> notes, int pageSize) throws Exception {
+        Page current = page;
+        if (isFresh(current)) {
+            return current;
+        }
+        synchronized (this) {
+            current = page;
+            if (isFresh(current)) {
+                return current;
+            }
+            long renderedGeneration = generation.get();
+            List<Note> firstPage = notes.get();
+            String older = null;
+            if (firstPage.size() > pageSize) {
+                firstPage = firstPage.subList(0, pageSize);
+                older = firstPage.get(pageSize - 1).getId();
+            }
+            Map<String, Object> model = new HashMap<>();
+            model.put("notes", firstPage);
+            String html = FreeMarkerTemplateUtils.processTemplateIntoString(freemarker.getTemplate("notes.ftl"), model);
+            current = new Page(html, older, renderedGeneration);
+            //A save during rendering makes this page stale already
+            if (generation.get() == renderedGeneration) {
+                page = current;
+            }
+            return current;
+        }
+    }
+
+    @EventListener
+    public void onNoteSaved(NoteSavedEvent event) {
+        invalidate();
+    }
+
+    void invalidate() {
+        generation.incrementAndGet();
+        page = null;
+    }
+
+    private boolean isFresh(Page page) {
+        //A page rendered before the change stream was last opened may have missed saves elsewhere
+        return page != null
+                && page.generation == generation.get()
+                && (changeListener.isListeningSince(page.renderedAt)
+                || System.currentTimeMillis() - page.renderedAt < properties.getNotesCacheTtl() * 1000);
+    }
+}
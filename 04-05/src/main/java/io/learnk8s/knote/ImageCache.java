@@ -0,0 +1,270 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Read-through cache of images from a remote {@link ImageStore} on the pod's local disk.
+ * The index lives in memory in LRU order and is bounded by the total size of the cached files.
+ * Entries are reference counted: a file evicted while requests are still sending it is deleted once the last one
+ * calls {@link Entry#release()}, and every load gets a file of its own.
+ */
+@Component
+class ImageCache {
+
+    @FunctionalInterface
+    interface Fetch<T> {
+        T apply(String name) throws Exception;
+    }
+
+    static class Entry {
+        private final long length;
+        private final String contentType;
+        private final String etag;
+        private final long lastModified;
+        private final Path file;
+        //Only files the cache wrote are deleted; the index holds one reference and every reader another
+        private final boolean owned;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Entry(long length, String contentType, String etag, long lastModified, Path file, boolean owned) {
+            this.length = length;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.file = file;
+            this.owned = owned;
+        }
+
+        static Entry of(ImageStore.Stat stat, Path file) {
+            return new Entry(stat.getLength(), stat.getContentType(), stat.getEtag(), stat.getLastModified(), file, false);
+        }
+
+        private static Entry cached(ImageStore.Stat stat, Path file) {
+            return new Entry(stat.getLength(), stat.getContentType(), stat.getEtag(), stat.getLastModified(), file, true);
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        String getContentType() {
+            return contentType;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Local copy of the object, or null when the object is not kept in the cache.
+         */
+        Path getFile() {
+            return file;
+        }
+
+        /**
+         * False when the file has already been deleted.
+         */
+        private boolean retain() {
+            if (!owned) {
+                return true;
+            }
+            int count;
+            do {
+                count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        /**
+         * Called by whoever got the entry from {@link ImageCache#get} once the file has been sent.
+         */
+        void release() {
+            if (owned && references.decrementAndGet() == 0) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private long size;
+
+    private Path dir;
+    private Counter hits;
+    private Counter misses;
+    private Counter evictions;
+
+    @PostConstruct
+    public void init() throws IOException {
+        hits = meterRegistry.counter("knote.images.cache.hits");
+        misses = meterRegistry.counter("knote.images.cache.misses");
+        evictions = meterRegistry.counter("knote.images.cache.evictions");
+        Gauge.builder("knote.images.cache.size", this, ImageCache::size).baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("knote.images.cache.entries", this, ImageCache::entries).register(meterRegistry);
+
+        if (!isEnabled()) {
+            return;
+        }
+        dir = Paths.get(properties.getImagesCacheDir());
+        Files.createDirectories(dir);
+        //The index is not persisted, so files left by a previous run can't be trusted
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        System.out.println("> Image cache in " + dir + " (" + properties.getImagesCacheMaxSize() + " bytes)");
+    }
+
+    boolean isEnabled() {
+        return properties.isImagesCacheEnabled();
+    }
+
+    /**
+     * Returns the cached entry for name, loading it once however many requests miss at the same time.
+     * The caller must {@link Entry#release()} it when done with the file.
+     */
+    Entry get(String name, Fetch<ImageStore.Stat> stat, Fetch<InputStream> open) throws Exception {
+        Entry entry = lookup(name);
+        if (entry != null) {
+            hits.increment();
+            return entry;
+        }
+        CompletableFuture<Entry> load = new CompletableFuture<>();
+        CompletableFuture<Entry> inFlight = loading.putIfAbsent(name, load);
+        if (inFlight != null) {
+            misses.increment();
+            entry = await(inFlight);
+            //Evicted and deleted before this request got to it
+            return entry.retain() ? entry : get(name, stat, open);
+        }
+        try {
+            //Another request may have finished loading between the lookup and putIfAbsent
+            entry = lookup(name);
+            if (entry != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+                entry = load(name, stat.apply(name), open);
+            }
+            load.complete(entry);
+            return entry;
+        } catch (Exception e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(name);
+        }
+    }
+
+    private Entry lookup(String name) {
+        synchronized (index) {
+            Entry entry = index.get(name);
+            //Entries in the index are never deleted, so this always succeeds
+            if (entry != null) {
+                entry.retain();
+            }
+            return entry;
+        }
+    }
+
+    private Entry await(CompletableFuture<Entry> load) throws Exception {
+        try {
+            return load.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private Entry load(String name, ImageStore.Stat stat, Fetch<InputStream> open) throws Exception {
+        //A single object must not flush most of the cache
+        if (stat.getLength() > properties.getImagesCacheMaxSize() / 4) {
+            return Entry.of(stat, null);
+        }
+        //A fresh file, as an evicted copy of the same image may still be being sent
+        Path file = Files.createTempFile(dir, "image-", ".cache");
+        try (InputStream in = open.apply(name)) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        Entry entry = Entry.cached(stat, file);
+        //The loader's reference, next to the index's
+        entry.retain();
+        synchronized (index) {
+            Entry previous = index.put(name, entry);
+            if (previous != null) {
+                size -= previous.getLength();
+                previous.release();
+            }
+            size += entry.getLength();
+            evict();
+        }
+        return entry;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = index.entrySet().iterator();
+        while (size > properties.getImagesCacheMaxSize() && eldest.hasNext()) {
+            Entry entry = eldest.next().getValue();
+            eldest.remove();
+            size -= entry.getLength();
+            evictions.increment();
+            //Deletes the file unless a request is still sending it
+            entry.release();
+        }
+    }
+
+    private double size() {
+        synchronized (index) {
+            return size;
+        }
+    }
+
+    private double entries() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.learnk8s.knote;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Creates resized copies of uploaded images in the background and stores them next to the original
+ * as w&lt;width&gt;/&lt;name&gt;. Until a copy exists the original is served instead.
+ */
+@Component
+class ImageDerivatives {
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private ImageStore store;
+
+    private ThreadPoolTaskExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("derivatives-");
+        executor.setCorePoolSize(properties.getImagesDerivativesThreads());
+        executor.setMaxPoolSize(properties.getImagesDerivativesThreads());
+        executor.setQueueCapacity(properties.getImagesDerivativesQueue());
+        executor.initialize();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    boolean isSupported(String contentType) {
+        return properties.isImagesDerivativesEnabled()
+                && ("image/png".equals(contentType) || "image/jpeg".equals(contentType));
+    }
+
+    /**
+     * Name of the derivative to serve for the requested width, or null for the original.
+     */
+    String variantName(String name, Integer width) {
+        if (width == null || !properties.isImagesDerivativesEnabled()) {
+            return null;
+        }
+        for (int candidate : properties.getImagesDerivativesWidths()) {
+            if (candidate >= width) {
+                return variantName(name, candidate);
+            }
+        }
+        return null;
+    }
+
+    private static String variantName(String name, int width) {
+        return "w" + width + "/" + name;
+    }
+
+    void submit(String name, String contentType) {
+        try {
+            executor.execute(() -> create(name, contentType));
+        } catch (RejectedExecutionException e) {
+            //The original keeps being served, so a full queue only costs bandwidth
+            System.out.println("> Derivatives queue full, skipping " + name);
+        }
+    }
+
+    private void create(String name, String contentType) {
+        try {
+            List<Integer> widths = properties.getImagesDerivativesWidths();
+            int originalWidth;
+            BufferedImage original;
+            try (InputStream in = store.open(name); ImageInputStream images = ImageIO.createImageInputStream(in)) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(images);
+                if (!readers.hasNext()) {
+                    return;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(images, true, true);
+                    //The header can claim any size, and decoding a small file can take gigabytes of heap
+                    originalWidth = reader.getWidth(0);
+                    long pixels = (long) originalWidth * reader.getHeight(0);
+                    if (pixels > properties.getImagesDerivativesMaxPixels()) {
+                        System.out.println("> " + name + " has " + pixels + " pixels, skipping derivatives");
+                        return;
+                    }
+                    //Only every n-th pixel is decoded, as long as that still leaves the widest derivative
+                    int subsampling = Math.max(1, originalWidth / Collections.max(widths));
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    original = reader.read(0, param);
+                } finally {
+                    reader.dispose();
+                }
+            }
+            String format = "image/png".equals(contentType) ? "png" : "jpeg";
+            for (int width : widths) {
+                String variant = variantName(name, width);
+                if (originalWidth <= width) {
+                    //Nothing to shrink, but the variant URL must still resolve once this is done
+                    store.copy(name, variant);
+                    continue;
+                }
+                byte[] resized = resize(original, width, format);
+                store.put(variant, contentType, new ByteArrayInputStream(resized), resized.length);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] resize(BufferedImage original, int width, String format) throws Exception {
+        int height = Math.max(1, (int) Math.round((double) original.getHeight() * width / original.getWidth()));
+        int type = "png".equals(format) ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage resized = new BufferedImage(width, height, type);
+        Graphics2D graphics = resized.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(original, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(resized, format, out);
+        return out.toByteArray();
+    }
+}
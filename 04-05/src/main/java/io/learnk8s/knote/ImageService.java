@@ -0,0 +1,452 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up, reads and stores images in the configured {@link ImageStore}, for both the servlet and the reactive controllers.
+ * The HTTP side of serving them stays with each controller.
+ */
+@Component
+class ImageService {
+
+    static final int IMAGE_BUFFER_SIZE = 16 * 1024;
+
+    //Uploads up to MinIO's smallest multipart part are read whole; larger ones are streamed to the store
+    private static final int SMALL_IMAGE_SIZE = 5 * 1024 * 1024;
+
+    //Signed URLs kept for reuse; each is a few hundred bytes
+    private static final int MAX_REDIRECTS = 10_000;
+
+    static class Image {
+        private final ImageCache.Entry entry;
+        private final String objectName;
+        private final boolean immutable;
+        private final String source;
+
+        Image(ImageCache.Entry entry, String objectName, boolean immutable, String source) {
+            this.entry = entry;
+            this.objectName = objectName;
+            this.immutable = immutable;
+            this.source = source;
+        }
+
+        ImageCache.Entry getEntry() {
+            return entry;
+        }
+
+        String getObjectName() {
+            return objectName;
+        }
+
+        /**
+         * False when a derivative was asked for but the original is served until it exists.
+         */
+        boolean isImmutable() {
+            return immutable;
+        }
+
+        /**
+         * Where the bytes are read from: "cache" for the disk cache, otherwise the name of the store.
+         */
+        String getSource() {
+            return source;
+        }
+
+        /**
+         * Lets the disk cache delete the file once it is evicted; called when the response is written.
+         */
+        void release() {
+            entry.release();
+        }
+    }
+
+    /**
+     * How to answer a request for an image: the status, the headers and, when there is a body, the bytes to send.
+     */
+    static class Response {
+        private final HttpStatus status;
+        private final HttpHeaders headers;
+        private final long start;
+        private final long count;
+        private final boolean body;
+
+        Response(HttpStatus status, HttpHeaders headers, long start, long count, boolean body) {
+            this.status = status;
+            this.headers = headers;
+            this.start = start;
+            this.count = count;
+            this.body = body;
+        }
+
+        HttpStatus getStatus() {
+            return status;
+        }
+
+        HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        long getStart() {
+            return start;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        boolean hasBody() {
+            return body;
+        }
+    }
+
+    static class Redirect {
+        private final String location;
+        private final long reuseUntil;
+
+        Redirect(String location, long reuseUntil) {
+            this.location = location;
+            this.reuseUntil = reuseUntil;
+        }
+
+        String getLocation() {
+            return location;
+        }
+
+        /**
+         * Cache-Control for the redirect: clients may follow it again until the URL is no longer handed out.
+         */
+        String getCacheControl() {
+            long maxAge = Math.max(0, TimeUnit.MILLISECONDS.toSeconds(reuseUntil - System.currentTimeMillis()));
+            return CacheControl.maxAge(maxAge, TimeUnit.SECONDS).cachePrivate().getHeaderValue();
+        }
+    }
+
+    private final Map<String, Redirect> redirects = new LinkedHashMap<String, Redirect>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Redirect> eldest) {
+            return size() > MAX_REDIRECTS;
+        }
+    };
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private ImageCache imageCache;
+    @Autowired
+    private ImageDerivatives imageDerivatives;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private ImageStore store;
+
+    /**
+     * The image to serve for name at the requested width, or a 404. The caller releases it after sending it.
+     */
+    Image find(String name, Integer width) throws Exception {
+        String variant = imageDerivatives.variantName(name, width);
+        if (variant != null) {
+            try {
+                return image(variant, true);
+            } catch (ResponseStatusException e) {
+                if (e.getStatus() != HttpStatus.NOT_FOUND) {
+                    throw e;
+                }
+                //The derivative isn't ready yet: serve the original, but don't let clients keep it
+                return image(name, false);
+            }
+        }
+        return image(name, true);
+    }
+
+    private Image image(String name, boolean immutable) throws Exception {
+        ImageCache.Entry entry = lookup(name);
+        String source = entry.getFile() != null && !store.isLocal() ? "cache" : store.getName();
+        return new Image(entry, name, immutable, source);
+    }
+
+    /**
+     * True when /img/{name} answers with a redirect to the store instead of sending the image.
+     */
+    boolean isRedirect() {
+        return properties.getImagesDelivery().equals("redirect") && store.isSignable();
+    }
+
+    /**
+     * A redirect to a signed URL of the image to serve for name at the requested width, or a 404.
+     * URLs are reused for half their lifetime, so repeated requests don't sign or look up the image again.
+     */
+    Redirect redirect(String name, Integer width) throws Exception {
+        String key = width != null ? name + "?w=" + width : name;
+        Redirect cached;
+        synchronized (redirects) {
+            cached = redirects.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (cached != null && cached.reuseUntil > now) {
+            return cached;
+        }
+        String object = imageDerivatives.variantName(name, width);
+        boolean immutable = true;
+        if (object == null || !objectExists(object)) {
+            //Until the derivative exists the original is served, and the redirect is only kept briefly
+            immutable = object == null;
+            object = name;
+            store.stat(name);
+        }
+        int expiry = properties.getImagesRedirectExpiry();
+        long reuse = TimeUnit.SECONDS.toMillis(immutable ? expiry / 2 : Math.min(60, expiry / 2));
+        Redirect redirect = new Redirect(store.signedUrl(object, expiry), now + reuse);
+        synchronized (redirects) {
+            redirects.put(key, redirect);
+        }
+        return redirect;
+    }
+
+    String cacheControl(boolean immutable) {
+        //Images are stored under unique names and never change once uploaded
+        return immutable
+                ? CacheControl.maxAge(properties.getImagesMaxAge(), TimeUnit.SECONDS).cachePublic().getHeaderValue() + ", immutable"
+                : CacheControl.maxAge(60, TimeUnit.SECONDS).cachePublic().getHeaderValue();
+    }
+
+    /**
+     * True when images are read from local files, which the server can send without holding a thread.
+     */
+    boolean isLocal() {
+        return store.isLocal();
+    }
+
+    InputStream open(String objectName, long start, long length) throws Exception {
+        return store.open(objectName, start, length);
+    }
+
+    private ImageCache.Entry lookup(String name) throws Exception {
+        return stage("getImageByName", "lookup").recordCallable(() -> {
+            //Images on local disk are already where the cache would put them
+            if (store.isLocal()) {
+                return ImageCache.Entry.of(store.stat(name), store.file(name));
+            }
+            return imageCache.isEnabled()
+                    ? imageCache.get(name, store::stat, store::open)
+                    : ImageCache.Entry.of(store.stat(name), null);
+        });
+    }
+
+    /**
+     * Stores an uploaded image and returns the URL to embed it with.
+     */
+    String upload(String filename, String contentType, InputStream stream) throws Exception {
+        //Fail before reading the upload if there is nowhere to put it
+        if (!store.isReady()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Image storage is not ready");
+        }
+        //Images are stored under the hash of their bytes, so the same image is only stored once
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        String extension = FilenameUtils.getExtension(filename).toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]", "");
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        byte[] buffer = new byte[IMAGE_BUFFER_SIZE];
+        int read;
+        Timer.Sample receive = Timer.start(meterRegistry);
+        while (head.size() < SMALL_IMAGE_SIZE && (read = stream.read(buffer)) != -1) {
+            head.write(buffer, 0, read);
+        }
+        receive.stop(stage("uploadImage", "receive"));
+
+        Timer.Sample write = Timer.start(meterRegistry);
+
+        String fileId;
+        boolean stored;
+        if (head.size() < SMALL_IMAGE_SIZE) {
+            //Small images are read completely, so the key is known before anything is sent to the store
+            byte[] bytes = head.toByteArray();
+            digest.update(bytes);
+            fileId = contentKey(digest, extension);
+            stored = objectExists(fileId);
+            if (!stored) {
+                store.put(fileId, contentType, new ByteArrayInputStream(bytes), bytes.length);
+            }
+        } else {
+            //Large images are hashed while they stream to a temporary object
+            String tmpId = "tmp/" + UUID.randomUUID().toString();
+            InputStream body = new DigestInputStream(
+                    new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), stream), digest);
+            //Only the copy read by body is needed from here on
+            head = null;
+            boolean moved = false;
+            try {
+                //The size is unknown until the multipart body ends
+                store.put(tmpId, contentType, body, -1);
+                fileId = contentKey(digest, extension);
+                stored = objectExists(fileId);
+                if (!stored) {
+                    store.move(tmpId, fileId);
+                    moved = true;
+                }
+            } finally {
+                //Also when the client went away or the store failed halfway, so no temporary object is left behind
+                if (!moved) {
+                    removeQuietly(tmpId);
+                }
+            }
+        }
+        write.stop(stage("uploadImage", "store"));
+        meterRegistry.counter("knote.images.uploads", "stored", String.valueOf(!stored)).increment();
+
+        String src = "/img/" + fileId;
+        if (imageDerivatives.isSupported(contentType)) {
+            //Derivatives of an image that was already stored exist or are on their way
+            if (!stored) {
+                imageDerivatives.submit(fileId, contentType);
+            }
+            src += "?w=" + properties.getImagesDerivativesEmbedWidth();
+        }
+        return src;
+    }
+
+    private void removeQuietly(String name) {
+        try {
+            store.remove(name);
+        } catch (Exception e) {
+            System.out.println("> Could not remove " + name + ": " + e);
+        }
+    }
+
+    private static String contentKey(MessageDigest digest, String extension) {
+        String hash = String.format("%064x", new BigInteger(1, digest.digest()));
+        return extension.isEmpty() ? hash : hash + "." + extension;
+    }
+
+    private boolean objectExists(String name) throws Exception {
+        try {
+            store.stat(name);
+            return true;
+        } catch (ResponseStatusException e) {
+            if (e.getStatus() == HttpStatus.NOT_FOUND) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Decides how to answer a GET or HEAD for the image from the request headers: 304 when the client's copy is
+     * still valid, 206 or 416 for a Range, otherwise 200. The controllers only write the result.
+     */
+    Response respond(Image found, HttpMethod method, HttpHeaders request) {
+        ImageCache.Entry image = found.getEntry();
+        long length = image.getLength();
+        //Images are stored under unique names and never change once uploaded
+        String etag = "\"" + image.getEtag() + "\"";
+        long lastModified = image.getLastModified();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setCacheControl(cacheControl(found.isImmutable()));
+        headers.setETag(etag);
+        headers.setLastModified(lastModified);
+        if (isNotModified(request, etag, lastModified)) {
+            return new Response(HttpStatus.NOT_MODIFIED, headers, 0, 0, false);
+        }
+        if (isModifiedSince(request, HttpHeaders.IF_UNMODIFIED_SINCE, lastModified)) {
+            return new Response(HttpStatus.PRECONDITION_FAILED, headers, 0, 0, false);
+        }
+
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.set(HttpHeaders.CONTENT_TYPE, image.getContentType() != null
+                ? image.getContentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        HttpStatus status = HttpStatus.OK;
+        long start = 0;
+        long end = length - 1;
+        List<HttpRange> ranges;
+        try {
+            ranges = isRangeCurrent(request, etag, lastModified) ? request.getRange() : Collections.emptyList();
+        } catch (IllegalArgumentException e) {
+            ranges = Collections.emptyList();
+        }
+        //Multiple ranges are allowed to be answered with the whole object
+        if (ranges.size() == 1) {
+            HttpRange range = ranges.get(0);
+            start = range.getRangeStart(length);
+            if (start >= length) {
+                headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                return new Response(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, headers, 0, 0, false);
+            }
+            end = range.getRangeEnd(length);
+            status = HttpStatus.PARTIAL_CONTENT;
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        }
+        long count = end - start + 1;
+        headers.setContentLength(count);
+        return new Response(status, headers, start, count, length > 0 && !HttpMethod.HEAD.equals(method));
+    }
+
+    private static boolean isNotModified(HttpHeaders request, String etag, long lastModified) {
+        //If-None-Match wins over If-Modified-Since, and compares weakly
+        List<String> ifNoneMatch = request.getIfNoneMatch();
+        if (!ifNoneMatch.isEmpty()) {
+            String tag = etag.replaceFirst("^W/", "");
+            for (String candidate : ifNoneMatch) {
+                if ("*".equals(candidate) || tag.equals(candidate.replaceFirst("^W/", ""))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return request.containsKey(HttpHeaders.IF_MODIFIED_SINCE)
+                && !isModifiedSince(request, HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+    }
+
+    private static boolean isModifiedSince(HttpHeaders request, String header, long lastModified) {
+        long since;
+        try {
+            since = request.getFirstDate(header);
+        } catch (IllegalArgumentException e) {
+            //A date that can't be parsed is ignored
+            return false;
+        }
+        //HTTP dates have whole seconds
+        return since != -1 && lastModified / 1000 > since / 1000;
+    }
+
+    /**
+     * Whether the Range header still applies, given the validator the client sent in If-Range.
+     */
+    private static boolean isRangeCurrent(HttpHeaders headers, String etag, long lastModified) {
+        String ifRange = headers.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        return headers.getFirstDate(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+    }
+
+    private Timer stage(String handler, String stage) {
+        return meterRegistry.timer("knote.stage", "handler", handler, "stage", stage);
+    }
+}
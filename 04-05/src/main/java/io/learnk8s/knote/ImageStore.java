@@ -0,0 +1,102 @@
+package io.learnk8s.knote;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Where uploaded images and their derivatives are kept. The backend is chosen with images.store:
+ * "minio" (the default) for clustered deployments, "filesystem" for a single node, or "memory" for tests and benchmarks.
+ * Lookups of missing images throw a 404 {@link org.springframework.web.server.ResponseStatusException}.
+ */
+interface ImageStore {
+
+    class Stat {
+        private final long length;
+        private final String contentType;
+        private final String etag;
+        private final long lastModified;
+
+        Stat(long length, String contentType, String etag, long lastModified) {
+            this.length = length;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Entity tag without quotes.
+         */
+        String getEtag() {
+            return etag;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Name used in logs and in the source tag of knote.images.served.
+     */
+    String getName();
+
+    /**
+     * False while the store can't be used yet; callers answer 503 instead of waiting for it.
+     */
+    default boolean isReady() {
+        return true;
+    }
+
+    Stat stat(String name) throws Exception;
+
+    InputStream open(String name) throws Exception;
+
+    InputStream open(String name, long start, long length) throws Exception;
+
+    /**
+     * Stores body under name. A length of -1 means the size is only known once the body ends.
+     */
+    void put(String name, String contentType, InputStream body, long length) throws Exception;
+
+    void copy(String from, String to) throws Exception;
+
+    void move(String from, String to) throws Exception;
+
+    void remove(String name) throws Exception;
+
+    /**
+     * True when the store can hand out URLs that let clients download images from it directly.
+     */
+    default boolean isSignable() {
+        return false;
+    }
+
+    /**
+     * A URL that downloads the image straight from the store for the next expiry seconds.
+     */
+    default String signedUrl(String name, int expiry) throws Exception {
+        throw new UnsupportedOperationException(getName() + " images can't be downloaded from the store");
+    }
+
+    /**
+     * True when images are files on local disk, so looking one up is cheap and it can be sent with sendfile.
+     */
+    default boolean isLocal() {
+        return false;
+    }
+
+    /**
+     * The file holding the image for local stores, null for remote ones.
+     */
+    default Path file(String name) {
+        return null;
+    }
+}
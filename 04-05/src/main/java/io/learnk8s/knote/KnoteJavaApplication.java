@@ -1,40 +1,77 @@
 package io.learnk8s.knote;
 
 
-import io.minio.MinioClient;
-import lombok.AllArgsConstructor;
-import lombok.Getter;
-import lombok.NoArgsConstructor;
-import lombok.Setter;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCompressor;
+import com.mongodb.ReadPreference;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.fileupload.FileCountLimitExceededException;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 import org.apache.commons.io.IOUtils;
-import org.commonmark.node.Node;
-import org.commonmark.parser.Parser;
-import org.commonmark.renderer.html.HtmlRenderer;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.annotation.Id;
-import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.repository.Meta;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.resource.PathResourceResolver;
+import reactor.core.publisher.Flux;
 
 import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
 
 @SpringBootApplication
 public class KnoteJavaApplication {
@@ -42,27 +79,125 @@ public class KnoteJavaApplication {
     public static void main(String[] args) {
         SpringApplication.run(KnoteJavaApplication.class, args);
     }
+}
+
+@Configuration
+@EnableConfigurationProperties(KnoteProperties.class)
+class KnoteConfig implements WebMvcConfigurer {
+
+    private static final String VIEW_STARTED = KnoteConfig.class.getName() + ".viewStarted";
+    private static final String CURSOR = KnoteConfig.class.getName() + ".cursor";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Bean
+    public MongoClientOptions mongoClientOptions(MongoMetrics mongoMetrics, KnoteProperties properties) {
+        //Boot copies these options into the client it builds from spring.data.mongodb.uri, whose own options win
+        return MongoClientOptions.builder()
+                .addCommandListener(mongoMetrics)
+                .addConnectionPoolListener(mongoMetrics)
+                .readPreference(readPreference(properties))
+                .compressorList(compressors(properties))
+                .build();
+    }
+
+    @Bean
+    public MongoCustomConversions mongoCustomConversions(NoteCompression noteCompression) {
+        //Registered even with compression off, so notes stored deflated can still be read
+        return new MongoCustomConversions(Arrays.asList(noteCompression.writer(), noteCompression.reader()));
+    }
 
+    static List<MongoCompressor> compressors(KnoteProperties properties) {
+        //The server picks the first one in the list that it was started with, see networkMessageCompressors
+        List<MongoCompressor> compressors = new ArrayList<>();
+        for (String name : properties.getMongoCompressors().split(",")) {
+            switch (name.trim().toLowerCase()) {
+                case "":
+                    break;
+                case "zlib":
+                    compressors.add(MongoCompressor.createZlibCompressor());
+                    break;
+                case "snappy":
+                    //Needs org.xerial.snappy:snappy-java on the classpath
+                    compressors.add(MongoCompressor.createSnappyCompressor());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown Mongo compressor " + name.trim());
+            }
+        }
+        return compressors;
+    }
+
+    private static ReadPreference readPreference(KnoteProperties properties) {
+        //Secondaries that fall further behind than maxStaleness are left out, and MongoDB needs at least 90 seconds.
+        //The primary is never stale, and the driver refuses maxStaleness with it
+        if (properties.getMongoReadMaxStaleness() > 0 && !"primary".equalsIgnoreCase(properties.getMongoReadPreference())) {
+            return ReadPreference.valueOf(properties.getMongoReadPreference(), Collections.emptyList(),
+                    properties.getMongoReadMaxStaleness(), TimeUnit.SECONDS);
+        }
+        return ReadPreference.valueOf(properties.getMongoReadPreference());
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        //Views are rendered after the handler returns, so the template stage is timed around it
+        registry.addInterceptor(new HandlerInterceptorAdapter() {
+            @Override
+            public void postHandle(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                   ModelAndView modelAndView) {
+                if (modelAndView != null && modelAndView.getViewName() != null
+                        && !modelAndView.getViewName().startsWith("redirect:")) {
+                    request.setAttribute(VIEW_STARTED, System.nanoTime());
+                }
+                //A streamed page reads its notes while rendering, so its cursor can only be closed afterwards
+                if (modelAndView != null && modelAndView.getModel().get("cursor") instanceof NoteCursor) {
+                    request.setAttribute(CURSOR, modelAndView.getModel().get("cursor"));
+                }
+            }
+
+            @Override
+            public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                        Exception ex) {
+                Object cursor = request.getAttribute(CURSOR);
+                if (cursor != null) {
+                    ((NoteCursor) cursor).close();
+                }
+                Object started = request.getAttribute(VIEW_STARTED);
+                if (started != null && handler instanceof HandlerMethod) {
+                    meterRegistry.timer("knote.stage", "handler", ((HandlerMethod) handler).getMethod().getName(),
+                            "stage", "template")
+                            .record(System.nanoTime() - (Long) started, TimeUnit.NANOSECONDS);
+                }
+            }
+        });
+    }
 }
 
 interface NotesRepository extends MongoRepository<Note, String> {
 
+    // ObjectIds start with their creation time, so _id order is newest-first order
+    List<Note> findAllByOrderByIdDesc(Pageable pageable);
+
+    List<Note> findByIdLessThanOrderByIdDesc(ObjectId id, Pageable pageable);
+
+    Note findFirstByOrderByIdDesc();
+
+    List<Note> findByIdGreaterThanOrderByIdAsc(ObjectId id, Pageable pageable);
+
+    // Streams ignore the page size, so the caller stops reading and closes the stream when the page is full
+    @Meta(cursorBatchSize = NoteCursor.BATCH_SIZE)
+    Stream<Note> streamAllByOrderByIdDesc();
+
+    @Meta(cursorBatchSize = NoteCursor.BATCH_SIZE)
+    Stream<Note> streamByIdLessThanOrderByIdDesc(ObjectId id);
 }
 
-@Document(collection = "notes")
-@Setter
-@Getter
-@NoArgsConstructor
-@AllArgsConstructor
-class Note {
-    @Id
-    private String id;
-    private String description;
+interface ReactiveNotesRepository extends ReactiveMongoRepository<Note, String> {
 
-    @Override
-    public String toString() {
-        return description;
-    }
+    Flux<Note> findAllByOrderByIdDesc(Pageable pageable);
+
+    Flux<Note> findByIdLessThanOrderByIdDesc(ObjectId id, Pageable pageable);
 }
 
 @ConfigurationProperties(prefix = "knote")
@@ -83,9 +218,203 @@ class KnoteProperties {
     @Value("${minio.useSSL:false}")
     private boolean minioUseSSL;
 
+    @Value("${minio.public.endpoint:}")
+    private String minioPublicEndpoint;
+
+    @Value("${minio.region:us-east-1}")
+    private String minioRegion;
+
     @Value("${minio.reconnect.enabled:true}")
     private boolean minioReconnectEnabled;
 
+    @Value("${minio.reconnect.initialDelay:500}")
+    private long minioReconnectInitialDelay;
+
+    @Value("${minio.reconnect.maxDelay:30000}")
+    private long minioReconnectMaxDelay;
+
+    @Value("${minio.timeout.connect:2000}")
+    private long minioConnectTimeout;
+
+    @Value("${minio.timeout.read:30000}")
+    private long minioReadTimeout;
+
+    @Value("${minio.timeout.write:30000}")
+    private long minioWriteTimeout;
+
+    @Value("${minio.pool.maxIdle:32}")
+    private int minioPoolMaxIdle;
+
+    @Value("${minio.pool.keepAlive:300000}")
+    private long minioPoolKeepAlive;
+
+    @Value("${minio.breaker.failures:5}")
+    private int minioBreakerFailures;
+
+    @Value("${minio.breaker.openFor:10000}")
+    private long minioBreakerOpenFor;
+
+    @Value("${minio.hedge.enabled:false}")
+    private boolean minioHedgeEnabled;
+
+    @Value("${minio.hedge.minDelay:20}")
+    private long minioHedgeMinDelay;
+
+    @Value("${mongo.read.preference:primary}")
+    private String mongoReadPreference;
+
+    @Value("${mongo.read.maxStaleness:0}")
+    private long mongoReadMaxStaleness;
+
+    @Value("${mongo.causal.enabled:true}")
+    private boolean mongoCausalEnabled;
+
+    @Value("${mongo.causal.window:60}")
+    private int mongoCausalWindow;
+
+    @Value("${mongo.causal.key:}")
+    private String mongoCausalKey;
+
+    @Value("${mongo.compressors:}")
+    private String mongoCompressors;
+
+    @Value("${notes.page.size:20}")
+    private int notesPageSize;
+
+    @Value("${notes.cache.enabled:true}")
+    private boolean notesCacheEnabled;
+
+    @Value("${notes.cache.ttl:5}")
+    private long notesCacheTtl;
+
+    @Value("${notes.streaming.enabled:false}")
+    private boolean notesStreamingEnabled;
+
+    @Value("${notes.changeStream.enabled:auto}")
+    private String notesChangeStreamEnabled;
+
+    @Value("${notes.feed.enabled:true}")
+    private boolean notesFeedEnabled;
+
+    @Value("${notes.feed.maxClients:1000}")
+    private int notesFeedMaxClients;
+
+    @Value("${notes.feed.timeout:300000}")
+    private long notesFeedTimeout;
+
+    @Value("${notes.feed.heartbeat:15000}")
+    private long notesFeedHeartbeat;
+
+    @Value("${notes.feed.sendTimeout:5000}")
+    private long notesFeedSendTimeout;
+
+    @Value("${notes.writeBehind.enabled:false}")
+    private boolean notesWriteBehindEnabled;
+
+    @Value("${notes.writeBehind.batchSize:100}")
+    private int notesWriteBehindBatchSize;
+
+    @Value("${notes.writeBehind.linger:10}")
+    private long notesWriteBehindLinger;
+
+    @Value("${notes.writeBehind.timeout:5000}")
+    private long notesWriteBehindTimeout;
+
+    @Value("${notes.render.maxLength:100000}")
+    private int notesRenderMaxLength;
+
+    @Value("${notes.render.timeout:2000}")
+    private long notesRenderTimeout;
+
+    @Value("${notes.compression.enabled:false}")
+    private boolean notesCompressionEnabled;
+
+    @Value("${notes.compression.minSize:256}")
+    private int notesCompressionMinSize;
+
+    @Value("${notes.rerender.enabled:true}")
+    private boolean notesRerenderEnabled;
+
+    @Value("${notes.rerender.batchSize:100}")
+    private int notesRerenderBatchSize;
+
+    @Value("${notes.rerender.threads:2}")
+    private int notesRerenderThreads;
+
+    @Value("${notes.rerender.pause:100}")
+    private long notesRerenderPause;
+
+    @Value("${notes.import.batchSize:500}")
+    private int notesImportBatchSize;
+
+    @Value("${images.store.dir:/tmp/knote-images}")
+    private String imagesStoreDir;
+
+    @Value("${images.delivery:proxy}")
+    private String imagesDelivery;
+
+    @Value("${images.redirect.expiry:900}")
+    private int imagesRedirectExpiry;
+
+    @Value("${images.maxAge:31536000}")
+    private long imagesMaxAge;
+
+    @Value("${images.upload.maxSize:67108864}")
+    private long imagesUploadMaxSize;
+
+    @Value("${images.derivatives.enabled:true}")
+    private boolean imagesDerivativesEnabled;
+
+    @Value("${images.derivatives.widths:320,640,1280}")
+    private List<Integer> imagesDerivativesWidths;
+
+    @Value("${images.derivatives.embedWidth:640}")
+    private int imagesDerivativesEmbedWidth;
+
+    @Value("${images.derivatives.threads:2}")
+    private int imagesDerivativesThreads;
+
+    @Value("${images.derivatives.queue:100}")
+    private int imagesDerivativesQueue;
+
+    @Value("${images.derivatives.maxPixels:50000000}")
+    private long imagesDerivativesMaxPixels;
+
+    @Value("${images.cache.enabled:false}")
+    private boolean imagesCacheEnabled;
+
+    @Value("${images.cache.dir:/tmp/knote-cache}")
+    private String imagesCacheDir;
+
+    @Value("${images.cache.maxSize:268435456}")
+    private long imagesCacheMaxSize;
+
+    @Value("${bulkhead.images.threads:32}")
+    private int bulkheadImagesThreads;
+
+    @Value("${bulkhead.images.queue:100}")
+    private int bulkheadImagesQueue;
+
+    @Value("${bulkhead.uploads.threads:8}")
+    private int bulkheadUploadsThreads;
+
+    @Value("${bulkhead.uploads.queue:16}")
+    private int bulkheadUploadsQueue;
+
+    @Value("${bulkhead.renders.threads:2}")
+    private int bulkheadRendersThreads;
+
+    @Value("${bulkhead.renders.queue:32}")
+    private int bulkheadRendersQueue;
+
+    @PostConstruct
+    public void validate() {
+        //A page is cut after its last note, so it has to hold at least one
+        if (notesPageSize < 1) {
+            throw new IllegalArgumentException("notes.page.size must be at least 1, not " + notesPageSize);
+        }
+    }
+
     public String getMinioHost() {
         return minioHost;
     }
@@ -106,118 +435,570 @@ class KnoteProperties {
         return minioUseSSL;
     }
 
+    public String getMinioPublicEndpoint() {
+        return minioPublicEndpoint;
+    }
+
+    public String getMinioRegion() {
+        return minioRegion;
+    }
+
     public boolean isMinioReconnectEnabled() {
         return minioReconnectEnabled;
     }
+
+    public long getMinioReconnectInitialDelay() {
+        return minioReconnectInitialDelay;
+    }
+
+    public long getMinioReconnectMaxDelay() {
+        return minioReconnectMaxDelay;
+    }
+
+    public long getMinioConnectTimeout() {
+        return minioConnectTimeout;
+    }
+
+    public long getMinioReadTimeout() {
+        return minioReadTimeout;
+    }
+
+    public long getMinioWriteTimeout() {
+        return minioWriteTimeout;
+    }
+
+    public int getMinioPoolMaxIdle() {
+        return minioPoolMaxIdle;
+    }
+
+    public long getMinioPoolKeepAlive() {
+        return minioPoolKeepAlive;
+    }
+
+    public int getMinioBreakerFailures() {
+        return minioBreakerFailures;
+    }
+
+    public long getMinioBreakerOpenFor() {
+        return minioBreakerOpenFor;
+    }
+
+    public boolean isMinioHedgeEnabled() {
+        return minioHedgeEnabled;
+    }
+
+    public long getMinioHedgeMinDelay() {
+        return minioHedgeMinDelay;
+    }
+
+    public String getMongoReadPreference() {
+        return mongoReadPreference;
+    }
+
+    public long getMongoReadMaxStaleness() {
+        return mongoReadMaxStaleness;
+    }
+
+    public boolean isMongoCausalEnabled() {
+        return mongoCausalEnabled;
+    }
+
+    public int getMongoCausalWindow() {
+        return mongoCausalWindow;
+    }
+
+    public String getMongoCausalKey() {
+        return mongoCausalKey;
+    }
+
+    public String getMongoCompressors() {
+        return mongoCompressors;
+    }
+
+    public int getNotesPageSize() {
+        return notesPageSize;
+    }
+
+    public boolean isNotesCacheEnabled() {
+        return notesCacheEnabled;
+    }
+
+    public long getNotesCacheTtl() {
+        return notesCacheTtl;
+    }
+
+    public boolean isNotesStreamingEnabled() {
+        return notesStreamingEnabled;
+    }
+
+    public String getNotesChangeStreamEnabled() {
+        return notesChangeStreamEnabled;
+    }
+
+    public boolean isNotesFeedEnabled() {
+        return notesFeedEnabled;
+    }
+
+    public int getNotesFeedMaxClients() {
+        return notesFeedMaxClients;
+    }
+
+    public long getNotesFeedTimeout() {
+        return notesFeedTimeout;
+    }
+
+    public long getNotesFeedHeartbeat() {
+        return notesFeedHeartbeat;
+    }
+
+    public long getNotesFeedSendTimeout() {
+        return notesFeedSendTimeout;
+    }
+
+    public boolean isNotesWriteBehindEnabled() {
+        return notesWriteBehindEnabled;
+    }
+
+    public int getNotesWriteBehindBatchSize() {
+        return notesWriteBehindBatchSize;
+    }
+
+    public long getNotesWriteBehindLinger() {
+        return notesWriteBehindLinger;
+    }
+
+    public long getNotesWriteBehindTimeout() {
+        return notesWriteBehindTimeout;
+    }
+
+    public int getNotesRenderMaxLength() {
+        return notesRenderMaxLength;
+    }
+
+    public long getNotesRenderTimeout() {
+        return notesRenderTimeout;
+    }
+
+    public boolean isNotesCompressionEnabled() {
+        return notesCompressionEnabled;
+    }
+
+    public int getNotesCompressionMinSize() {
+        return notesCompressionMinSize;
+    }
+
+    public boolean isNotesRerenderEnabled() {
+        return notesRerenderEnabled;
+    }
+
+    public int getNotesRerenderBatchSize() {
+        return notesRerenderBatchSize;
+    }
+
+    public int getNotesRerenderThreads() {
+        return notesRerenderThreads;
+    }
+
+    public long getNotesRerenderPause() {
+        return notesRerenderPause;
+    }
+
+    public int getNotesImportBatchSize() {
+        return notesImportBatchSize;
+    }
+
+    public String getImagesStoreDir() {
+        return imagesStoreDir;
+    }
+
+    public String getImagesDelivery() {
+        return imagesDelivery;
+    }
+
+    public int getImagesRedirectExpiry() {
+        return imagesRedirectExpiry;
+    }
+
+    public long getImagesMaxAge() {
+        return imagesMaxAge;
+    }
+
+    public long getImagesUploadMaxSize() {
+        return imagesUploadMaxSize;
+    }
+
+    public boolean isImagesDerivativesEnabled() {
+        return imagesDerivativesEnabled;
+    }
+
+    public List<Integer> getImagesDerivativesWidths() {
+        List<Integer> widths = new ArrayList<>(imagesDerivativesWidths);
+        Collections.sort(widths);
+        return widths;
+    }
+
+    public int getImagesDerivativesEmbedWidth() {
+        return imagesDerivativesEmbedWidth;
+    }
+
+    public int getImagesDerivativesThreads() {
+        return imagesDerivativesThreads;
+    }
+
+    public int getImagesDerivativesQueue() {
+        return imagesDerivativesQueue;
+    }
+
+    public long getImagesDerivativesMaxPixels() {
+        return imagesDerivativesMaxPixels;
+    }
+
+    public boolean isImagesCacheEnabled() {
+        return imagesCacheEnabled;
+    }
+
+    public String getImagesCacheDir() {
+        return imagesCacheDir;
+    }
+
+    public long getImagesCacheMaxSize() {
+        return imagesCacheMaxSize;
+    }
+
+    public int getBulkheadImagesThreads() {
+        return bulkheadImagesThreads;
+    }
+
+    public int getBulkheadImagesQueue() {
+        return bulkheadImagesQueue;
+    }
+
+    public int getBulkheadUploadsThreads() {
+        return bulkheadUploadsThreads;
+    }
+
+    public int getBulkheadUploadsQueue() {
+        return bulkheadUploadsQueue;
+    }
+
+    public int getBulkheadRendersThreads() {
+        return bulkheadRendersThreads;
+    }
+
+    public int getBulkheadRendersQueue() {
+        return bulkheadRendersQueue;
+    }
 }
 
 @Controller
-@EnableConfigurationProperties(KnoteProperties.class)
+@Profile("!reactive")
 class KNoteController {
 
+    //The form sends four fields, and every part costs memory while the request is parsed
+    private static final int MAX_PARTS = 16;
+
     @Autowired
     private NotesRepository notesRepository;
     @Autowired
+    private NoteWriter noteWriter;
+    @Autowired
     private KnoteProperties properties;
+    @Autowired
+    private ImageService imageService;
+    @Autowired
+    private Bulkheads bulkheads;
+    @Autowired
+    private FrontPageCache frontPageCache;
+    @Autowired
+    private NoteIndex noteIndex;
+    @Autowired
+    private NoteFeed noteFeed;
+    @Autowired
+    private CausalSessions causalSessions;
+    @Autowired
+    private NoteRenderer noteRenderer;
+    @Autowired
+    private ApplicationEventPublisher publisher;
+    @Autowired
+    private MeterRegistry meterRegistry;
 
-    private Parser parser = Parser.builder().build();
-    private HtmlRenderer renderer = HtmlRenderer.builder().build();
-
-    private MinioClient minioClient;
 
-    @PostConstruct
-    public void init() throws InterruptedException {
-        initMinio();
+    @GetMapping("/")
+    public String index(@RequestParam(required = false) String before, HttpServletRequest request,
+                        Model model) throws Exception {
+        getAllNotes("index", before, request, model);
+        if (before == null && noteFeed.isEnabled()) {
+            model.addAttribute("feed", true);
+        }
+        return "index";
     }
 
+    @GetMapping(value = "/notes/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamNotes(@RequestParam(required = false) String after,
+                                  @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        if (!noteFeed.isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        //A reconnecting browser knows better than the page which notes it has
+        return noteFeed.subscribe(lastEventId != null ? lastEventId : after);
+    }
 
-    @GetMapping("/")
-    public String index(Model model) {
-        getAllNotes(model);
+    @GetMapping("/search")
+    public String search(@RequestParam(defaultValue = "") String q,
+                         @RequestParam(defaultValue = "0") int page,
+                         Model model) {
+        int pageSize = properties.getNotesPageSize();
+        page = Math.max(page, 0);
+        int requested = page;
+        NoteIndex.Result result = stage("search", "index").record(() -> noteIndex.search(q, requested, pageSize));
+        Map<String, Note> found = new HashMap<>();
+        stage("search", "query").record(() ->
+                notesRepository.findAllById(result.getIds()).forEach(note -> found.put(note.getId(), note)));
+        List<Note> notes = new ArrayList<>();
+        for (String id : result.getIds()) {
+            if (found.containsKey(id)) {
+                notes.add(found.get(id));
+            }
+        }
+        model.addAttribute("q", q);
+        model.addAttribute("notes", notes);
+        model.addAttribute("total", result.getTotal());
+        if ((page + 1L) * pageSize < result.getTotal()) {
+            model.addAttribute("nextPage", page + 1);
+        }
         return "index";
     }
 
+    @PostMapping(value = "/note", params = "upload=Upload")
+    public WebAsyncTask<String> uploadNotes(HttpServletRequest request, HttpServletResponse response, Model model) {
+        //Uploads wait on the client and on MinIO, so they run in their own bulkhead
+        return bulkheads.getUploads().submit(() -> saveNotes(request, response, model));
+    }
+
     @PostMapping("/note")
-    public String saveNotes(@RequestParam("image") MultipartFile file,
-                            @RequestParam String description,
-                            @RequestParam(required = false) String publish,
-                            @RequestParam(required = false) String upload,
-                            Model model) throws Exception {
+    public String saveNotes(HttpServletRequest request, HttpServletResponse response, Model model) throws Exception {
+        //The upload button posts to /note?upload=Upload, so we know what to do with the image before it arrives
+        Map<String, String> fields = new HashMap<>();
+        String image = null;
+        ServletFileUpload fileUpload = new ServletFileUpload();
+        fileUpload.setFileSizeMax(properties.getImagesUploadMaxSize());
+        fileUpload.setFileCountMax(MAX_PARTS);
+        try {
+            FileItemIterator items = fileUpload.getItemIterator(request);
+            //The streaming iterator doesn't enforce the count itself, only parseRequest does
+            for (int parts = 1; items.hasNext(); parts++) {
+                if (parts > fileUpload.getFileCountMax()) {
+                    throw new FileCountLimitExceededException("multipart", fileUpload.getFileCountMax());
+                }
+                FileItemStream item = items.next();
+                try (InputStream stream = item.openStream()) {
+                    if (item.isFormField()) {
+                        fields.put(item.getFieldName(), Streams.asString(stream, "UTF-8"));
+                    } else if ("image".equals(item.getFieldName()) && item.getName() != null && !item.getName().isEmpty()
+                            && "Upload".equals(field(request, fields, "upload"))) {
+                        image = imageService.upload(item.getName(), item.getContentType(), stream);
+                    }
+                    //Anything else is skipped when the stream is closed
+                }
+            }
+        } catch (FileUploadBase.FileSizeLimitExceededException | FileUploadBase.FileUploadIOException e) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Images can be at most "
+                    + properties.getImagesUploadMaxSize() + " bytes", e);
+        } catch (FileCountLimitExceededException e) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "A note can have at most "
+                    + MAX_PARTS + " form fields", e);
+        }
 
+        String description = fields.getOrDefault("description", "");
+        String publish = field(request, fields, "publish");
+        String upload = field(request, fields, "upload");
         if (publish != null && publish.equals("Publish")) {
-            saveNote(description, model);
-            getAllNotes(model);
+            Note note = saveNote(description, model);
+            causalSessions.remember(response);
+            if ("XMLHttpRequest".equals(request.getHeader("X-Requested-With"))) {
+                if (note == null) {
+                    response.setStatus(HttpStatus.NO_CONTENT.value());
+                    return null;
+                }
+                //The page adds the note itself, as the feed may be served by a replica that hasn't seen it yet
+                model.addAttribute("note", note);
+                return "note";
+            }
             return "redirect:/";
         }
         if (upload != null && upload.equals("Upload")) {
-            if (file != null && file.getOriginalFilename() != null && !file.getOriginalFilename().isEmpty()) {
-                uploadImage(file, description, model);
-            }
-            getAllNotes(model);
+            model.addAttribute("description", image != null ? description + " ![](" + image + ")" : description);
+            getAllNotes("saveNotes", null, request, model);
             return "index";
         }
         return "index";
     }
 
-    @GetMapping(value = "/img/{name}", produces = MediaType.IMAGE_PNG_VALUE)
-    public @ResponseBody byte[] getImageByName(@PathVariable String name) throws Exception {
-        InputStream imageStream = minioClient.getObject(properties.getMinioBucket(), name);
-        return IOUtils.toByteArray(imageStream);
+    private static String field(HttpServletRequest request, Map<String, String> fields, String name) {
+        return request.getParameter(name) != null ? request.getParameter(name) : fields.get(name);
     }
 
-    private void getAllNotes(Model model) {
-        List<Note> notes = notesRepository.findAll();
-        Collections.reverse(notes);
-        model.addAttribute("notes", notes);
+    @GetMapping("/img/{name}")
+    public WebAsyncTask<HttpHeaders> getImageByName(@PathVariable String name,
+                                                    @RequestParam(required = false) Integer w,
+                                                    @RequestHeader HttpHeaders headers,
+                                                    HttpServletRequest request,
+                                                    HttpServletResponse response) throws Exception {
+        if (imageService.isLocal()) {
+            //Tomcat sends local files with sendfile after the handler returns, which only works outside async requests
+            sendImage(name, w, headers, request, response);
+            return null;
+        }
+        return bulkheads.getImages().submit(() -> {
+            sendImage(name, w, headers, request, response);
+            //The response is already written, and empty headers tell Spring MVC there is no view to render
+            return new HttpHeaders();
+        });
     }
 
-    private void uploadImage(MultipartFile file, String description, Model model) throws Exception {
-        String fileId = UUID.randomUUID().toString() + "." + file.getOriginalFilename().split("\\.")[1];
-        minioClient.putObject(properties.getMinioBucket(), fileId, file.getInputStream(),
-                                file.getSize(), null, null, file.getContentType());
-        model.addAttribute("description",
-                description + " ![](/img/" + fileId + ")");
-    }
-
-    private void saveNote(String description, Model model) {
-        if (description != null && !description.trim().isEmpty()) {
-            //You need to translate markup to HTML
-            Node document = parser.parse(description.trim());
-            String html = renderer.render(document);
-            notesRepository.save(new Note(null, html));
-            //After publish you need to clean up the textarea
-            model.addAttribute("description", "");
-        }
-    }
-
-    private void initMinio() throws InterruptedException {
-        boolean success = false;
-        while (!success) {
-            try {
-                minioClient = new MinioClient("http://" + properties.getMinioHost() + ":9000" ,
-                                                properties.getMinioAccessKey(),
-                                                properties.getMinioSecretKey(),
-                                        false);
-                // Check if the bucket already exists.
-                boolean isExist = minioClient.bucketExists(properties.getMinioBucket());
-                if (isExist) {
-                    System.out.println("> Bucket already exists.");
-                } else {
-                    minioClient.makeBucket(properties.getMinioBucket());
-                }
-                success = true;
-            } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println("> Minio Reconnect: " + properties.isMinioReconnectEnabled());
-                if (properties.isMinioReconnectEnabled()) {
-                    Thread.sleep(5000);
-                } else {
-                    success = true;
+    private void sendImage(String name, Integer w, HttpHeaders headers,
+                           HttpServletRequest request, HttpServletResponse response) throws Exception {
+        if (imageService.isRedirect()) {
+            //The client downloads the image from MinIO, so the bytes never pass through the app
+            ImageService.Redirect redirect = imageService.redirect(name, w);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, redirect.getCacheControl());
+            response.setHeader(HttpHeaders.LOCATION, redirect.getLocation());
+            response.setStatus(HttpStatus.FOUND.value());
+            meterRegistry.counter("knote.images.redirects").increment();
+            return;
+        }
+        ImageService.Image found = imageService.find(name, w);
+        try {
+            sendImage(found, headers, request, response);
+        } finally {
+            found.release();
+        }
+    }
 
-                }
+    private void sendImage(ImageService.Image found, HttpHeaders headers,
+                           HttpServletRequest request, HttpServletResponse response) throws Exception {
+        ImageService.Response answer = imageService.respond(found, HttpMethod.resolve(request.getMethod()), headers);
+        response.setStatus(answer.getStatus().value());
+        answer.getHeaders().forEach((header, values) -> values.forEach(value -> response.addHeader(header, value)));
+        if (!answer.hasBody()) {
+            return;
+        }
+        ImageCache.Entry image = found.getEntry();
+        long start = answer.getStart();
+        long count = answer.getCount();
+        Timer.Sample transfer = Timer.start(meterRegistry);
+        if (image.getFile() != null) {
+            sendFile(image.getFile(), start, count, request, response);
+        } else {
+            //Copy straight from the store to the client instead of buffering the whole object
+            try (InputStream imageStream = imageService.open(found.getObjectName(), start, count)) {
+                IOUtils.copyLarge(imageStream, response.getOutputStream(), new byte[ImageService.IMAGE_BUFFER_SIZE]);
             }
         }
-        System.out.println("> Minio initialized!");
+        transfer.stop(stage("getImageByName", "transfer"));
+        meterRegistry.counter("knote.images.served", "source", found.getSource()).increment(count);
+    }
+
+
+    private Timer stage(String handler, String stage) {
+        return meterRegistry.timer("knote.stage", "handler", handler, "stage", stage);
+    }
+
+    private void sendFile(Path file, long start, long count,
+                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        //Let Tomcat hand the file to the kernel with sendfile when the connector supports it.
+        //Tomcat ignores the attributes on async requests, which would then end without a body.
+        //Disk cache files are always sent from the images bulkhead, so they are copied before they are released
+        if (Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support")) && !request.isAsyncStarted()) {
+            request.setAttribute("org.apache.tomcat.sendfile.filename", file.toAbsolutePath().toString());
+            request.setAttribute("org.apache.tomcat.sendfile.start", start);
+            request.setAttribute("org.apache.tomcat.sendfile.end", start + count);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long end = start + count;
+            while (position < end) {
+                position += channel.transferTo(position, end - position, out);
+            }
+        }
+    }
+
+
+
+    private void getAllNotes(String handler, String before, HttpServletRequest request, Model model) throws Exception {
+        int pageSize = properties.getNotesPageSize();
+        //Right after a save the page is read in a causal session, so a secondary can't leave the new note out
+        if (causalSessions.hasWritten(request)) {
+            if (before != null) {
+                model.addAttribute("before", before);
+            }
+            List<Note> notes = stage(handler, "query").record(() ->
+                    causalSessions.read(request, mongo -> mongo.find(pageQuery(before, pageSize + 1), Note.class)));
+            addPage(notes, pageSize, model);
+            return;
+        }
+        if (before == null && frontPageCache.isEnabled()) {
+            FrontPageCache.Page page = stage(handler, "frontPage").recordCallable(() ->
+                    frontPageCache.get(() -> findNotes(handler, null, pageSize), pageSize));
+            model.addAttribute("notesHtml", page.getHtml());
+            if (page.getOlder() != null) {
+                model.addAttribute("older", page.getOlder());
+            }
+            return;
+        }
+        if (before != null) {
+            model.addAttribute("before", before);
+        }
+        if (properties.isNotesStreamingEnabled()) {
+            //The page is rendered while the notes are read, and the older link is added once they are
+            NoteCursor cursor = stage(handler, "query").record(() -> new NoteCursor(before != null && ObjectId.isValid(before)
+                    ? notesRepository.streamByIdLessThanOrderByIdDesc(new ObjectId(before))
+                    : notesRepository.streamAllByOrderByIdDesc(), pageSize));
+            model.addAttribute("cursor", cursor);
+            model.addAttribute("notes", cursor.getNotes());
+            return;
+        }
+        addPage(findNotes(handler, before, pageSize), pageSize, model);
+    }
+
+    private static void addPage(List<Note> notes, int pageSize, Model model) {
+        if (notes.size() > pageSize) {
+            notes = notes.subList(0, pageSize);
+            model.addAttribute("older", notes.get(pageSize - 1).getId());
+        }
+        model.addAttribute("notes", notes);
+    }
+
+    private static Query pageQuery(String before, int limit) {
+        Query query = new Query().with(Sort.by(Sort.Direction.DESC, "id")).limit(limit);
+        if (before != null && ObjectId.isValid(before)) {
+            query.addCriteria(where("id").lt(new ObjectId(before)));
+        }
+        return query;
+    }
+
+    private List<Note> findNotes(String handler, String before, int pageSize) {
+        //Fetch one extra note to know whether there is an older page
+        Pageable page = PageRequest.of(0, pageSize + 1);
+        return stage(handler, "query").record(() -> before != null && ObjectId.isValid(before)
+                ? notesRepository.findByIdLessThanOrderByIdDesc(new ObjectId(before), page)
+                : notesRepository.findAllByOrderByIdDesc(page));
+    }
+
+
+    private Note saveNote(String description, Model model) throws Exception {
+        if (description == null || description.trim().isEmpty()) {
+            return null;
+        }
+        //You need to translate markup to HTML, and the markdown is kept to render it again later
+        Note rendered = stage("saveNotes", "markdown").recordCallable(() -> noteRenderer.newNote(description.trim()));
+        Note note = stage("saveNotes", "save").record(() -> noteWriter.save(rendered));
+        publisher.publishEvent(new NoteSavedEvent(note, false, true));
+        //After publish you need to clean up the textarea
+        model.addAttribute("description", "");
+        return note;
     }
 
 }
@@ -0,0 +1,84 @@
+package io.learnk8s.knote;
+
+import org.apache.commons.io.IOUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps images on the heap of this instance. Images are lost on restart, so this is for tests and benchmarks.
+ */
+@Component
+@ConditionalOnProperty(name = "images.store", havingValue = "memory")
+class MemoryImageStore implements ImageStore {
+
+    private static class Blob {
+        private final byte[] bytes;
+        private final Stat stat;
+
+        Blob(byte[] bytes, Stat stat) {
+            this.bytes = bytes;
+            this.stat = stat;
+        }
+    }
+
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+
+    @Override
+    public String getName() {
+        return "memory";
+    }
+
+    @Override
+    public Stat stat(String name) {
+        return get(name).stat;
+    }
+
+    @Override
+    public InputStream open(String name) {
+        return new ByteArrayInputStream(get(name).bytes);
+    }
+
+    @Override
+    public InputStream open(String name, long start, long length) {
+        return new ByteArrayInputStream(get(name).bytes, (int) start, (int) length);
+    }
+
+    @Override
+    public void put(String name, String contentType, InputStream body, long length) throws Exception {
+        byte[] bytes = IOUtils.toByteArray(body);
+        blobs.put(name, new Blob(bytes, new Stat(bytes.length, contentType, DigestUtils.md5DigestAsHex(bytes),
+                System.currentTimeMillis())));
+    }
+
+    @Override
+    public void copy(String from, String to) {
+        blobs.put(to, get(from));
+    }
+
+    @Override
+    public void move(String from, String to) {
+        blobs.put(to, get(from));
+        blobs.remove(from);
+    }
+
+    @Override
+    public void remove(String name) {
+        blobs.remove(name);
+    }
+
+    private Blob get(String name) {
+        Blob blob = blobs.get(name);
+        if (blob == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image " + name + " not found");
+        }
+        return blob;
+    }
+}
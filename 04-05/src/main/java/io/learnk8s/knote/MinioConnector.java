@@ -0,0 +1,172 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.okhttp3.OkHttpMetricsEventListener;
+import io.minio.MinioClient;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Connects to MinIO and creates the bucket in the background, retrying with exponential backoff.
+ * Until it succeeds the rest of the app runs, and anything that needs storage gets a 503.
+ */
+@Component
+@ConditionalOnProperty(name = "images.store", havingValue = "minio", matchIfMissing = true)
+class MinioConnector {
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "minio-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private volatile MinioClient client;
+    private volatile boolean gaveUp;
+    private volatile String lastError;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("knote.minio.ready", this, connector -> connector.isReady() ? 1 : 0).register(meterRegistry);
+        scheduler.execute(this::connect);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * The connected client, or a 503 while MinIO is still unreachable.
+     */
+    MinioClient client() {
+        MinioClient ready = client;
+        if (ready == null) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Image storage is not ready");
+        }
+        return ready;
+    }
+
+    boolean isReady() {
+        return client != null;
+    }
+
+    boolean hasGivenUp() {
+        return gaveUp;
+    }
+
+    int getAttempts() {
+        return attempts.get();
+    }
+
+    String getLastError() {
+        return lastError;
+    }
+
+    private void connect() {
+        int attempt = attempts.incrementAndGet();
+        try {
+            MinioClient candidate = new MinioClient(properties.getMinioHost(), 9000,
+                    properties.getMinioAccessKey(),
+                    properties.getMinioSecretKey(),
+                    null, false, httpClient());
+            // Check if the bucket already exists.
+            boolean isExist = candidate.bucketExists(properties.getMinioBucket());
+            if (isExist) {
+                System.out.println("> Bucket already exists.");
+            } else {
+                candidate.makeBucket(properties.getMinioBucket());
+                expireTemporaryObjects(candidate);
+            }
+            client = candidate;
+            lastError = null;
+            scheduler.shutdown();
+            System.out.println("> Minio initialized after " + attempt + " attempt(s)!");
+        } catch (Exception e) {
+            lastError = e.toString();
+            System.out.println("> Minio not reachable (attempt " + attempt + "): " + e);
+            System.out.println("> Minio Reconnect: " + properties.isMinioReconnectEnabled());
+            if (properties.isMinioReconnectEnabled()) {
+                scheduler.schedule(this::connect, backoff(attempt), TimeUnit.MILLISECONDS);
+            } else {
+                gaveUp = true;
+            }
+        }
+    }
+
+    /**
+     * Uploads that die between the temporary object and the move leave it behind, so the bucket drops them after a day.
+     * Only done for buckets created here, as it replaces the bucket's lifecycle rules.
+     */
+    private void expireTemporaryObjects(MinioClient candidate) {
+        try {
+            candidate.setBucketLifeCycle(properties.getMinioBucket(), "<LifecycleConfiguration><Rule>"
+                    + "<ID>expire-tmp</ID><Filter><Prefix>tmp/</Prefix></Filter><Status>Enabled</Status>"
+                    + "<Expiration><Days>1</Days></Expiration></Rule></LifecycleConfiguration>");
+        } catch (Exception e) {
+            System.out.println("> Could not expire temporary uploads: " + e);
+        }
+    }
+
+    private long backoff(int attempt) {
+        long delay = Math.min(properties.getMinioReconnectInitialDelay() << Math.min(attempt - 1, 20),
+                properties.getMinioReconnectMaxDelay());
+        //Replicas that started together shouldn't keep retrying together
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private OkHttpClient httpClient() {
+        //The MinIO client waits up to 15 minutes by default, so a stalled node held request threads for that long.
+        //Read and write timeouts apply to each socket operation, not to a whole transfer
+        return new OkHttpClient.Builder()
+                .connectTimeout(properties.getMinioConnectTimeout(), TimeUnit.MILLISECONDS)
+                .writeTimeout(properties.getMinioWriteTimeout(), TimeUnit.MILLISECONDS)
+                .readTimeout(properties.getMinioReadTimeout(), TimeUnit.MILLISECONDS)
+                //Enough idle connections for the image bulkhead, so busy periods don't pay for new connections
+                .connectionPool(new ConnectionPool(properties.getMinioPoolMaxIdle(),
+                        properties.getMinioPoolKeepAlive(), TimeUnit.MILLISECONDS))
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .eventListener(OkHttpMetricsEventListener.builder(meterRegistry, "knote.minio.requests")
+                        .uriMapper(operation())
+                        .build())
+                .build();
+    }
+
+    private static Function<Request, String> operation() {
+        //Object names would give every image its own time series, so only the shape of the call is kept
+        return request -> {
+            HttpUrl url = request.url();
+            String operation = url.pathSize() > 1 && !url.pathSegments().get(1).isEmpty() ? "/{bucket}/{object}" : "/{bucket}";
+            if (url.queryParameter("uploadId") != null) {
+                operation += "?uploadId";
+            } else if (url.queryParameterNames().contains("uploads")) {
+                operation += "?uploads";
+            }
+            return operation;
+        };
+    }
+}
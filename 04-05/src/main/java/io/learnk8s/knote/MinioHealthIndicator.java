@@ -0,0 +1,44 @@
+package io.learnk8s.knote;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports the state of the MinIO connection and its circuit breaker under "minio" in /actuator/health.
+ * While MinIO is unavailable the status is UNKNOWN rather than DOWN, so the pod still
+ * becomes ready and serves notes as soon as Mongo is up.
+ */
+@Component
+@ConditionalOnProperty(name = "images.store", havingValue = "minio", matchIfMissing = true)
+class MinioHealthIndicator implements HealthIndicator {
+
+    @Autowired
+    private MinioConnector minio;
+    @Autowired
+    private MinioImageStore store;
+    @Autowired
+    private KnoteProperties properties;
+
+    @Override
+    public Health health() {
+        if (minio.isReady() && store.getBreakerState() == CircuitBreaker.State.OPEN) {
+            //Image calls fail fast for now, but notes are still served
+            return Health.unknown().withDetail("bucket", properties.getMinioBucket())
+                    .withDetail("breaker", store.getBreakerState()).build();
+        }
+        if (minio.isReady()) {
+            return Health.up().withDetail("bucket", properties.getMinioBucket())
+                    .withDetail("breaker", store.getBreakerState()).build();
+        }
+        Health.Builder health = Health.unknown()
+                .withDetail("state", minio.hasGivenUp() ? "unavailable" : "connecting")
+                .withDetail("attempts", minio.getAttempts());
+        if (minio.getLastError() != null) {
+            health.withDetail("error", minio.getLastError());
+        }
+        return health.build();
+    }
+}
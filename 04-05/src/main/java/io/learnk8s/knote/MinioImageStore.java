@@ -0,0 +1,264 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.minio.ErrorCode;
+import io.minio.MinioClient;
+import io.minio.ObjectStat;
+import io.minio.PutObjectOptions;
+import io.minio.errors.ErrorResponseException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps images as objects in a MinIO bucket, so every replica sees the same images.
+ * Calls go through a circuit breaker, and reads can be hedged: when a GET takes longer than most,
+ * a second one is sent and whichever answers first is used.
+ */
+@Component
+@ConditionalOnProperty(name = "images.store", havingValue = "minio", matchIfMissing = true)
+class MinioImageStore implements ImageStore {
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private MinioConnector minio;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor hedging;
+    private MinioClient signer;
+    private CircuitBreaker breaker;
+    private Timer gets;
+    private Counter hedges;
+    private Counter skippedHedges;
+
+    @PostConstruct
+    public void init() throws Exception {
+        //Signing needs no connection once the region is known, but the URL must name the host browsers reach MinIO at
+        String endpoint = properties.getMinioPublicEndpoint().isEmpty()
+                ? "http://" + properties.getMinioHost() + ":9000"
+                : properties.getMinioPublicEndpoint();
+        signer = new MinioClient(endpoint, properties.getMinioAccessKey(), properties.getMinioSecretKey(),
+                properties.getMinioRegion());
+        breaker = new CircuitBreaker("minio", properties.getMinioBreakerFailures(),
+                properties.getMinioBreakerOpenFor(), meterRegistry);
+        //Time until MinIO starts sending the object; its p95 is how long a GET waits before it is hedged
+        gets = Timer.builder("knote.minio.get").publishPercentiles(0.95).register(meterRegistry);
+        hedges = meterRegistry.counter("knote.minio.hedges");
+        skippedHedges = meterRegistry.counter("knote.minio.hedges.skipped");
+        //Room for a GET and its hedge for every thread of the images bulkhead, and no queue:
+        //a GET that would have to wait for a thread is sent from the caller's thread, and a hedge is skipped
+        int threads = 2 * properties.getBulkheadImagesThreads();
+        hedging = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), task -> {
+            Thread thread = new Thread(task, "minio-get");
+            thread.setDaemon(true);
+            return thread;
+        });
+        hedging.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        hedging.shutdownNow();
+    }
+
+    CircuitBreaker.State getBreakerState() {
+        return breaker.getState();
+    }
+
+    @Override
+    public String getName() {
+        return "minio";
+    }
+
+    @Override
+    public boolean isReady() {
+        return minio.isReady();
+    }
+
+    @Override
+    public boolean isSignable() {
+        return true;
+    }
+
+    @Override
+    public String signedUrl(String name, int expiry) throws Exception {
+        return signer.presignedGetObject(properties.getMinioBucket(), name, expiry);
+    }
+
+    @Override
+    public Stat stat(String name) throws Exception {
+        try {
+            ObjectStat stat = breaker.call(() -> minio.client().statObject(properties.getMinioBucket(), name));
+            return new Stat(stat.length(), stat.contentType(), stat.etag().replace("\"", ""),
+                    stat.createdTime().toInstant().toEpochMilli());
+        } catch (ErrorResponseException e) {
+            ErrorCode code = e.errorResponse().errorCode();
+            if (code == ErrorCode.NO_SUCH_KEY || code == ErrorCode.NO_SUCH_OBJECT) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image " + name + " not found");
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream open(String name) throws Exception {
+        return get(() -> minio.client().getObject(properties.getMinioBucket(), name));
+    }
+
+    @Override
+    public InputStream open(String name, long start, long length) throws Exception {
+        return get(() -> minio.client().getObject(properties.getMinioBucket(), name, start, length));
+    }
+
+    @Override
+    public void put(String name, String contentType, InputStream body, long length) throws Exception {
+        //Without a size MinIO uploads the body in parts of a fixed size
+        PutObjectOptions options = length >= 0
+                ? new PutObjectOptions(length, -1)
+                : new PutObjectOptions(-1, PutObjectOptions.MIN_MULTIPART_SIZE);
+        options.setContentType(contentType);
+        breaker.call(() -> {
+            minio.client().putObject(properties.getMinioBucket(), name, body, options);
+            return null;
+        });
+    }
+
+    @Override
+    public void copy(String from, String to) throws Exception {
+        breaker.call(() -> {
+            minio.client().copyObject(properties.getMinioBucket(), to, null, null,
+                    properties.getMinioBucket(), from, null, null);
+            return null;
+        });
+    }
+
+    @Override
+    public void move(String from, String to) throws Exception {
+        //Objects can't be renamed, only copied on the server
+        copy(from, to);
+        remove(from);
+    }
+
+    @Override
+    public void remove(String name) throws Exception {
+        breaker.call(() -> {
+            minio.client().removeObject(properties.getMinioBucket(), name);
+            return null;
+        });
+    }
+
+    private InputStream get(Callable<InputStream> get) throws Exception {
+        if (!properties.isMinioHedgeEnabled()) {
+            return breaker.call(() -> gets.recordCallable(get));
+        }
+        return breaker.call(() -> hedged(get));
+    }
+
+    private InputStream hedged(Callable<InputStream> get) throws Exception {
+        CompletableFuture<InputStream> first = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        if (!send(get, first, pending, failure)) {
+            return gets.recordCallable(get);
+        }
+        try {
+            return first.get(hedgeDelay(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            //Slower than most GETs: another replica behind the service may answer sooner
+            if (send(get, first, pending, failure)) {
+                hedges.increment();
+            } else {
+                skippedHedges.increment();
+            }
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+        try {
+            //The client's own read timeout only covers one read on the socket
+            return first.get(properties.getMinioReadTimeout(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            //A GET that answers later closes its stream instead of leaking it
+            SocketTimeoutException timeout = new SocketTimeoutException(
+                    "MinIO did not answer within " + properties.getMinioReadTimeout() + " ms");
+            first.completeExceptionally(timeout);
+            throw timeout;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Sends a GET from the hedging pool, or returns false when all its threads are busy.
+     */
+    private boolean send(Callable<InputStream> get, CompletableFuture<InputStream> first, AtomicInteger pending,
+                         AtomicReference<Exception> failure) {
+        pending.incrementAndGet();
+        try {
+            hedging.execute(() -> {
+                try {
+                    InputStream stream = gets.recordCallable(get);
+                    if (!first.complete(stream)) {
+                        //The other GET won
+                        close(stream);
+                    }
+                } catch (Exception e) {
+                    //The caller only sees an error when neither GET succeeds
+                    failure.compareAndSet(null, e);
+                    if (pending.decrementAndGet() == 0) {
+                        first.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //The other GET may have failed in the meantime and left the answer to this one
+            if (pending.decrementAndGet() == 0 && failure.get() != null) {
+                first.completeExceptionally(failure.get());
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private long hedgeDelay() {
+        long p95 = 0;
+        for (ValueAtPercentile percentile : gets.takeSnapshot().percentileValues()) {
+            p95 = (long) percentile.value(TimeUnit.MILLISECONDS);
+        }
+        return Math.max(p95, properties.getMinioHedgeMinDelay());
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        return e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
+
+    private static void close(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package io.learnk8s.knote;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import com.mongodb.event.ConnectionRemovedEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Times every command sent to MongoDB and keeps gauges of each connection pool.
+ * The driver reports both through listeners registered on the client options.
+ * Pools are counted per server address, so the blocking and the reactive client add up in reactive mode.
+ */
+@Component
+class MongoMetrics extends ConnectionPoolListenerAdapter implements CommandListener {
+
+    private static class Pool {
+        private final AtomicInteger clients = new AtomicInteger();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicInteger checkedOut = new AtomicInteger();
+        private final AtomicInteger waitQueue = new AtomicInteger();
+        private final List<Meter> meters = new ArrayList<>();
+    }
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<ServerAddress, Pool> pools = new ConcurrentHashMap<>();
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        record(event.getCommandName(), "success", event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        record(event.getCommandName(), "failure", event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    private void record(String command, String status, long nanos) {
+        meterRegistry.timer("knote.mongodb.commands", "command", command, "status", status)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void connectionPoolOpened(ConnectionPoolOpenedEvent event) {
+        pools.compute(event.getServerId().getAddress(), (address, pool) -> {
+            if (pool == null) {
+                pool = new Pool();
+                Tags tags = Tags.of("server", address.toString());
+                pool.meters.add(Gauge.builder("knote.mongodb.pool.size", pool.size, AtomicInteger::get)
+                        .tags(tags).register(meterRegistry));
+                pool.meters.add(Gauge.builder("knote.mongodb.pool.checkedout", pool.checkedOut, AtomicInteger::get)
+                        .tags(tags).register(meterRegistry));
+                pool.meters.add(Gauge.builder("knote.mongodb.pool.waitqueue", pool.waitQueue, AtomicInteger::get)
+                        .tags(tags).register(meterRegistry));
+            }
+            pool.clients.incrementAndGet();
+            return pool;
+        });
+    }
+
+    @Override
+    public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+        pools.computeIfPresent(event.getServerId().getAddress(), (address, pool) -> {
+            if (pool.clients.decrementAndGet() > 0) {
+                return pool;
+            }
+            pool.meters.forEach(meterRegistry::remove);
+            return null;
+        });
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        update(event.getConnectionId().getServerId(), pool -> pool.checkedOut.incrementAndGet());
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        update(event.getConnectionId().getServerId(), pool -> pool.checkedOut.decrementAndGet());
+    }
+
+    @Override
+    public void waitQueueEntered(ConnectionPoolWaitQueueEnteredEvent event) {
+        update(event.getServerId(), pool -> pool.waitQueue.incrementAndGet());
+    }
+
+    @Override
+    public void waitQueueExited(ConnectionPoolWaitQueueExitedEvent event) {
+        update(event.getServerId(), pool -> pool.waitQueue.decrementAndGet());
+    }
+
+    @Override
+    public void connectionAdded(ConnectionAddedEvent event) {
+        update(event.getConnectionId().getServerId(), pool -> pool.size.incrementAndGet());
+    }
+
+    @Override
+    public void connectionRemoved(ConnectionRemovedEvent event) {
+        update(event.getConnectionId().getServerId(), pool -> pool.size.decrementAndGet());
+    }
+
+    private void update(ServerId server, Consumer<Pool> change) {
+        Pool pool = pools.get(server.getAddress());
+        if (pool != null) {
+            change.accept(pool);
+        }
+    }
+}
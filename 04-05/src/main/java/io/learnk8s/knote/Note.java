@@ -0,0 +1,37 @@
+package io.learnk8s.knote;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * A published note. The class is public so that templates can read its properties.
+ * The description is the HTML shown on the page, rendered from the markdown with version renderVersion of
+ * {@link NoteRenderer}. Notes saved before the markdown was kept have only a description.
+ */
+@Document(collection = "notes")
+@Setter
+@Getter
+@NoArgsConstructor
+public class Note {
+    @Id
+    private String id;
+    private String description;
+    private String markdown;
+    private Integer renderVersion;
+    private Instant createdAt;
+
+    public Note(String id, String description) {
+        this.id = id;
+        this.description = description;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
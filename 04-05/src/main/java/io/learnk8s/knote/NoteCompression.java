@@ -0,0 +1,161 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+import org.springframework.data.convert.WritingConverter;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Maps notes to and from Mongo documents, storing the HTML and markdown deflated when notes.compression.enabled is set.
+ * Deflated bodies are binaries of a subtype of their own, so compressed and plain notes can share the collection
+ * and notes stay readable after compression is turned off again.
+ * The mapping is a converter, so every path to the collection uses it: repositories, bulk writes,
+ * causal sessions, the change stream and the reactive driver.
+ */
+@Component
+class NoteCompression {
+
+    //User-defined binary subtypes start at 0x80
+    static final byte DEFLATED = (byte) 0x80;
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Counter plainBytes;
+    private Counter storedBytes;
+
+    @PostConstruct
+    public void init() {
+        plainBytes = meterRegistry.counter("knote.notes.body.bytes", "form", "plain");
+        storedBytes = meterRegistry.counter("knote.notes.body.bytes", "form", "stored");
+    }
+
+    /**
+     * The value to store for a note body: deflated when that is enabled and makes it smaller, otherwise the text.
+     */
+    Object encode(String text) {
+        if (text == null) {
+            return null;
+        }
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        plainBytes.increment(utf8.length);
+        //Short notes don't deflate to anything smaller
+        if (properties.isNotesCompressionEnabled() && utf8.length >= properties.getNotesCompressionMinSize()) {
+            byte[] deflated = deflate(utf8);
+            if (deflated.length < utf8.length) {
+                storedBytes.increment(deflated.length);
+                return new Binary(DEFLATED, deflated);
+            }
+        }
+        storedBytes.increment(utf8.length);
+        return text;
+    }
+
+    static String decode(Object value) {
+        if (value instanceof Binary && ((Binary) value).getType() == DEFLATED) {
+            return inflate(((Binary) value).getData());
+        }
+        return (String) value;
+    }
+
+    static byte[] deflate(byte[] utf8) {
+        //Deflaters hold native memory until end(), so each call has its own and releases it
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(utf8);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String inflate(byte[] deflated) {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(deflated);
+        //HTML usually deflates to a fifth of its size or less
+        ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 5);
+        byte[] buffer = new byte[4096];
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("Truncated note body");
+                }
+                out.write(buffer, 0, inflated);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt note body", e);
+        } finally {
+            inflater.end();
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    Converter<Note, Document> writer() {
+        return new NoteToDocument();
+    }
+
+    Converter<Document, Note> reader() {
+        return new DocumentToNote();
+    }
+
+    @WritingConverter
+    private class NoteToDocument implements Converter<Note, Document> {
+        @Override
+        public Document convert(Note note) {
+            Document document = new Document();
+            //Ids are ObjectIds in the collection, as the default mapping stores them
+            if (note.getId() != null) {
+                document.put("_id", ObjectId.isValid(note.getId()) ? new ObjectId(note.getId()) : note.getId());
+            }
+            putIfPresent(document, "description", encode(note.getDescription()));
+            putIfPresent(document, "markdown", encode(note.getMarkdown()));
+            putIfPresent(document, "renderVersion", note.getRenderVersion());
+            putIfPresent(document, "createdAt", note.getCreatedAt() != null ? Date.from(note.getCreatedAt()) : null);
+            return document;
+        }
+
+        private void putIfPresent(Document document, String key, Object value) {
+            if (value != null) {
+                document.put(key, value);
+            }
+        }
+    }
+
+    @ReadingConverter
+    private static class DocumentToNote implements Converter<Document, Note> {
+        @Override
+        public Note convert(Document document) {
+            Object id = document.get("_id");
+            Note note = new Note(id != null ? id.toString() : null, decode(document.get("description")));
+            note.setMarkdown(decode(document.get("markdown")));
+            Number renderVersion = (Number) document.get("renderVersion");
+            note.setRenderVersion(renderVersion != null ? renderVersion.intValue() : null);
+            Date createdAt = document.getDate("createdAt");
+            note.setCreatedAt(createdAt != null ? createdAt.toInstant() : null);
+            return note;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package io.learnk8s.knote;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/**
+ * One page of notes read straight from a Mongo cursor while the page is rendered,
+ * so only a batch of notes is in memory at a time however large the page is.
+ * The cursor is closed once the page is full or the notes run out.
+ * Public because FreeMarker only reads properties of public classes.
+ */
+public class NoteCursor implements AutoCloseable {
+
+    //Notes fetched per round trip; the page is flushed to the client after each batch
+    static final int BATCH_SIZE = 100;
+
+    private final Stream<Note> stream;
+    private final Iterator<Note> source;
+    private final int pageSize;
+    private int count;
+    private Note last;
+    private String older;
+    private boolean closed;
+
+    NoteCursor(Stream<Note> stream, int pageSize) {
+        this.stream = stream;
+        this.source = stream.iterator();
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * The notes on the page; can be iterated only once.
+     */
+    Iterator<Note> getNotes() {
+        return new Iterator<Note>() {
+            @Override
+            public boolean hasNext() {
+                if (closed) {
+                    return false;
+                }
+                if (count < pageSize && source.hasNext()) {
+                    return true;
+                }
+                //One more note after a full page means there is an older page
+                if (count == pageSize && source.hasNext()) {
+                    older = last.getId();
+                }
+                close();
+                return false;
+            }
+
+            @Override
+            public Note next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = source.next();
+                count++;
+                return last;
+            }
+        };
+    }
+
+    /**
+     * Id of the last note on the page when there are older notes; known only after the notes have been read.
+     */
+    public String getOlder() {
+        return older;
+    }
+
+    /**
+     * True right after the last note of a batch, when the next note needs another round trip to Mongo.
+     */
+    public boolean isBatchDone() {
+        return count > 0 && count % BATCH_SIZE == 0;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            stream.close();
+        }
+    }
+}
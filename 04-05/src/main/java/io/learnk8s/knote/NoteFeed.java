@@ -0,0 +1,250 @@
+package io.learnk8s.knote;
+
+import freemarker.template.Configuration;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.ui.freemarker.FreeMarkerTemplateUtils;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Pushes saved notes to the open front pages as server-sent events, each holding the note rendered with note.ftl.
+ * A note is rendered once however many pages are open.
+ * While {@link NotesChangeListener} runs the events come from the change stream, so pages also see notes saved on other replicas.
+ * Every page has its own queue of events, written by a small pool; a page that doesn't read its events in time is dropped
+ * and reconnects on its own.
+ */
+@Component
+class NoteFeed {
+
+    //Threads writing to the pages; each works on one page at a time, so a stuck page holds at most one
+    private static final int WRITERS = 4;
+    //Events waiting for one page, a page's worth of catch-up plus a few new notes
+    private static final int MAX_QUEUED = 64;
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private NotesRepository notesRepository;
+    @Autowired
+    private Configuration freemarker;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private NotesChangeListener changeListener;
+
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    //Renders notes and hands the events out, so saving a note never waits for the pages
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "note-feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService writers = Executors.newFixedThreadPool(WRITERS, task -> {
+        Thread thread = new Thread(task, "note-feed-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Counter events;
+    private Counter dropped;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("knote.feed.clients", clients, Set::size).register(meterRegistry);
+        events = meterRegistry.counter("knote.feed.events");
+        dropped = meterRegistry.counter("knote.feed.dropped");
+        //Comments keep idle connections open through proxies and find clients that went away
+        long heartbeat = properties.getNotesFeedHeartbeat();
+        sender.scheduleWithFixedDelay(() -> sendAll(() -> SseEmitter.event().comment("")), heartbeat, heartbeat,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sender.shutdownNow();
+        writers.shutdownNow();
+        clients.forEach(client -> client.emitter.complete());
+    }
+
+    boolean isEnabled() {
+        return properties.isNotesFeedEnabled();
+    }
+
+    /**
+     * Opens a feed for a page whose newest note is after, sending the notes it missed first.
+     */
+    SseEmitter subscribe(String after) {
+        //Browsers reconnect on their own when the feed times out, and ask for what they missed
+        return subscribe(new SseEmitter(properties.getNotesFeedTimeout()), after);
+    }
+
+    SseEmitter subscribe(SseEmitter emitter, String after) {
+        if (clients.size() >= properties.getNotesFeedMaxClients()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many open feeds");
+        }
+        Client client = new Client(emitter);
+        emitter.onCompletion(() -> clients.remove(client));
+        emitter.onTimeout(() -> clients.remove(client));
+        emitter.onError(e -> clients.remove(client));
+        //The page is listening before the catch-up query, so no note saved meanwhile is missed;
+        //one that is sent twice replaces itself on the page
+        clients.add(client);
+        if (after != null && ObjectId.isValid(after)) {
+            //On the request thread, where the events are buffered until the response starts
+            try {
+                catchUp(client, new ObjectId(after));
+            } catch (Exception e) {
+                clients.remove(client);
+                emitter.completeWithError(e);
+            }
+        }
+        return emitter;
+    }
+
+    private void catchUp(Client client, ObjectId after) throws Exception {
+        int pageSize = properties.getNotesPageSize();
+        List<Note> missed = notesRepository.findByIdGreaterThanOrderByIdAsc(after, PageRequest.of(0, pageSize + 1));
+        if (missed.size() > pageSize) {
+            clients.remove(client);
+            client.emitter.send(SseEmitter.event().name("reload").data(""));
+            client.emitter.complete();
+            return;
+        }
+        for (Note note : missed) {
+            client.emitter.send(event(note, render(note)));
+        }
+    }
+
+    @EventListener
+    public void onNoteSaved(NoteSavedEvent event) {
+        //The change stream reports local saves as well, so only its events are sent.
+        //Imported and re-rendered notes are old, and pages would show them on top as if they were new
+        if (!isEnabled() || clients.isEmpty() || !event.isPublished()
+                || event.isRemote() != changeListener.isEnabled()) {
+            return;
+        }
+        Note note = event.getNote();
+        sender.execute(() -> {
+            try {
+                String html = render(note);
+                sendAll(() -> event(note, html));
+                events.increment();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void sendAll(Supplier<SseEmitter.SseEventBuilder> event) {
+        //Builders can't be sent twice, so every client gets its own
+        for (Client client : clients) {
+            client.send(event.get());
+        }
+    }
+
+    private String render(Note note) throws Exception {
+        return FreeMarkerTemplateUtils.processTemplateIntoString(freemarker.getTemplate("note.ftl"),
+                Collections.singletonMap("note", note));
+    }
+
+    private static SseEmitter.SseEventBuilder event(Note note, String html) {
+        SseEmitter.SseEventBuilder event = SseEmitter.event().id(note.getId()).name("note");
+        //A line break inside data would end the field, so every line gets its own
+        for (String line : html.split("\n")) {
+            event.data(line);
+        }
+        return event;
+    }
+
+    /**
+     * One open page and the events waiting for it. At most one writer works on a page at a time.
+     */
+    private class Client {
+
+        private final SseEmitter emitter;
+        private final Queue<SseEmitter.SseEventBuilder> queued = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        private volatile long sendingSince;
+        private volatile boolean slow;
+
+        Client(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        void send(SseEmitter.SseEventBuilder event) {
+            long since = sendingSince;
+            if (queued.size() >= MAX_QUEUED
+                    || since != 0 && System.currentTimeMillis() - since > properties.getNotesFeedSendTimeout()) {
+                drop();
+                return;
+            }
+            queued.add(event);
+            write();
+        }
+
+        private void write() {
+            if (writing.compareAndSet(false, true)) {
+                writers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                SseEmitter.SseEventBuilder event;
+                while (!slow && (event = queued.poll()) != null) {
+                    sendingSince = System.currentTimeMillis();
+                    emitter.send(event);
+                    sendingSince = 0;
+                }
+                if (slow) {
+                    emitter.complete();
+                }
+            } catch (IOException | IllegalStateException e) {
+                //The page was closed
+                clients.remove(this);
+                emitter.completeWithError(e);
+            } finally {
+                writing.set(false);
+            }
+            //An event may have been queued after the last poll
+            if (!slow && !queued.isEmpty()) {
+                write();
+            }
+        }
+
+        private void drop() {
+            //The emitter is locked by the writer stuck in send, so the writer completes it once the send
+            //returns or the socket times out
+            if (clients.remove(this)) {
+                slow = true;
+                queued.clear();
+                dropped.increment();
+                write();
+            }
+        }
+    }
+}
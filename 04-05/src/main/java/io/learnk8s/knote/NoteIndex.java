@@ -0,0 +1,181 @@
+package io.learnk8s.knote;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.HtmlUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index of the text of every note, ranked with BM25.
+ * It is filled from the repository at startup and kept current through {@link NoteSavedEvent}.
+ */
+@Component
+class NoteIndex {
+
+    static class Result {
+        private final List<String> ids;
+        private final int total;
+
+        Result(List<String> ids, int total) {
+            this.ids = ids;
+            this.total = total;
+        }
+
+        List<String> getIds() {
+            return ids;
+        }
+
+        int getTotal() {
+            return total;
+        }
+    }
+
+    private static final int BATCH_SIZE = 500;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    @Autowired
+    private NotesRepository notesRepository;
+
+    private final Map<String, Map<String, Integer>> postings = new HashMap<>();
+    private final Map<String, Integer> lengths = new HashMap<>();
+    private final Map<String, Set<String>> documentTerms = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long totalLength;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void build() {
+        Thread builder = new Thread(() -> {
+            while (true) {
+                try {
+                    load();
+                    return;
+                } catch (Exception e) {
+                    System.out.println("> Search index not built, retrying: " + e.getMessage());
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }, "note-index");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    private void load() {
+        //Walk the collection in pages instead of holding every note at once
+        List<Note> batch = notesRepository.findAllByOrderByIdDesc(PageRequest.of(0, BATCH_SIZE));
+        int count = 0;
+        while (!batch.isEmpty()) {
+            batch.forEach(this::add);
+            count += batch.size();
+            String last = batch.get(batch.size() - 1).getId();
+            batch = notesRepository.findByIdLessThanOrderByIdDesc(new ObjectId(last), PageRequest.of(0, BATCH_SIZE));
+        }
+        System.out.println("> Search index built with " + count + " notes");
+    }
+
+    @EventListener
+    public void onNoteSaved(NoteSavedEvent event) {
+        add(event.getNote());
+    }
+
+    void add(Note note) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String term : tokenize(note.getDescription())) {
+            frequencies.merge(term, 1, Integer::sum);
+        }
+        int length = frequencies.values().stream().mapToInt(Integer::intValue).sum();
+        lock.writeLock().lock();
+        try {
+            remove(note.getId());
+            frequencies.forEach((term, frequency) ->
+                    postings.computeIfAbsent(term, t -> new HashMap<>()).put(note.getId(), frequency));
+            lengths.put(note.getId(), length);
+            documentTerms.put(note.getId(), frequencies.keySet());
+            totalLength += length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(String id) {
+        Integer length = lengths.remove(id);
+        if (length == null) {
+            return;
+        }
+        totalLength -= length;
+        for (String term : documentTerms.remove(id)) {
+            Map<String, Integer> documents = postings.get(term);
+            documents.remove(id);
+            if (documents.isEmpty()) {
+                postings.remove(term);
+            }
+        }
+    }
+
+    /**
+     * Ids of the notes matching any term of the query, best match first.
+     */
+    Result search(String query, int page, int pageSize) {
+        Set<String> terms = new HashSet<>(tokenize(query));
+        Map<String, Double> scores = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            int documents = lengths.size();
+            double averageLength = documents == 0 ? 0 : (double) totalLength / documents;
+            for (String term : terms) {
+                Map<String, Integer> matches = postings.getOrDefault(term, Collections.emptyMap());
+                double idf = Math.log(1 + (documents - matches.size() + 0.5) / (matches.size() + 0.5));
+                matches.forEach((id, frequency) -> {
+                    double norm = K1 * (1 - B + B * lengths.get(id) / averageLength);
+                    scores.merge(id, idf * frequency * (K1 + 1) / (frequency + norm), Double::sum);
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Map.Entry<String, Double>> ranked = new ArrayList<>(scores.entrySet());
+        //Newer notes win ties, and ObjectId hex strings sort by creation time
+        ranked.sort(Map.Entry.<String, Double>comparingByValue().reversed()
+                .thenComparing(Map.Entry.<String, Double>comparingByKey().reversed()));
+        List<String> ids = new ArrayList<>();
+        //In long, so a huge page number is past the end instead of overflowing
+        int from = (int) Math.min((long) page * pageSize, ranked.size());
+        int to = (int) Math.min((long) from + pageSize, ranked.size());
+        for (int i = from; i < to; i++) {
+            ids.add(ranked.get(i).getKey());
+        }
+        return new Result(ids, ranked.size());
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) {
+            return terms;
+        }
+        String plain = HtmlUtils.htmlUnescape(text.replaceAll("<[^>]*>", " ")).toLowerCase(Locale.ROOT);
+        for (String term : plain.split("[^\\p{L}\\p{N}]+")) {
+            if (term.length() > 1) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,137 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.commonmark.node.Node;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Turns the markdown of a note into the HTML shown on the page.
+ * VERSION goes up whenever the same markdown would render differently, for example when an extension is added,
+ * and {@link NoteRerenderer} then renders the stored notes again.
+ * Markdown from users is rendered on the renders bulkhead with a length limit and a time budget,
+ * so a pathological note costs one render thread for notes.render.timeout at most instead of a server thread.
+ */
+@Component
+class NoteRenderer {
+
+    static final int VERSION = 1;
+
+    private static class DeadlineExceeded extends RuntimeException {
+        DeadlineExceeded() {
+            super("Render deadline exceeded", null, false, false);
+        }
+    }
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private Bulkheads bulkheads;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    //Both are thread-safe, so one of each serves every request
+    private final Parser parser = Parser.builder().build();
+    private final HtmlRenderer renderer = HtmlRenderer.builder().build();
+
+    private Timer renders;
+    private DistributionSummary lengths;
+    private Counter timeouts;
+
+    @PostConstruct
+    public void init() {
+        renders = meterRegistry.timer("knote.notes.render");
+        lengths = meterRegistry.summary("knote.notes.render.length");
+        timeouts = meterRegistry.counter("knote.notes.render.timeouts");
+    }
+
+    /**
+     * Renders on the calling thread without limits, for notes that are already stored.
+     */
+    String render(String markdown) {
+        return renderer.render(parser.parse(markdown));
+    }
+
+    /**
+     * Renders markdown from a user on the renders bulkhead. Answers 413 when it is too long,
+     * 422 when it takes longer than notes.render.timeout and 503 when the bulkhead is full.
+     */
+    String renderLimited(String markdown) throws Exception {
+        if (markdown.length() > properties.getNotesRenderMaxLength()) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Notes can be at most "
+                    + properties.getNotesRenderMaxLength() + " characters");
+        }
+        lengths.record(markdown.length());
+        long timeout = properties.getNotesRenderTimeout();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            return bulkheads.getRenders().call(() -> renders.recordCallable(() -> render(markdown, deadline)), timeout);
+        } catch (TimeoutException | DeadlineExceeded e) {
+            timeouts.increment();
+            throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "The note took longer than "
+                    + timeout + " ms to render", e);
+        }
+    }
+
+    Note newNote(String markdown) throws Exception {
+        Note note = new Note(null, renderLimited(markdown));
+        note.setMarkdown(markdown);
+        note.setRenderVersion(VERSION);
+        note.setCreatedAt(Instant.now());
+        return note;
+    }
+
+    /**
+     * True when the note has markdown that was rendered by an older version.
+     */
+    boolean isStale(Note note) {
+        return note.getMarkdown() != null && (note.getRenderVersion() == null || note.getRenderVersion() < VERSION);
+    }
+
+    private String render(String markdown, long deadline) {
+        //Parsing can't be stopped halfway, but the length limit bounds it; rendering stops at the deadline
+        Node document = parser.parse(markdown);
+        checkDeadline(deadline);
+        StringBuilder html = new StringBuilder(markdown.length() + markdown.length() / 2);
+        renderer.render(document, new Appendable() {
+            @Override
+            public Appendable append(CharSequence text) {
+                checkDeadline(deadline);
+                html.append(text);
+                return this;
+            }
+
+            @Override
+            public Appendable append(CharSequence text, int start, int end) {
+                checkDeadline(deadline);
+                html.append(text, start, end);
+                return this;
+            }
+
+            @Override
+            public Appendable append(char c) {
+                html.append(c);
+                return this;
+            }
+        });
+        return html.toString();
+    }
+
+    private static void checkDeadline(long deadline) {
+        if (System.nanoTime() - deadline > 0) {
+            throw new DeadlineExceeded();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package io.learnk8s.knote;
+
+import com.mongodb.BulkWriteError;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Renders stored notes again after {@link NoteRenderer#VERSION} goes up, while the site keeps serving.
+ * The collection is walked once through a cursor; each batch is rendered on a small pool and written back with one
+ * bulk update. Notes saved before createdAt existed get it from their id on the way.
+ * Every replica runs the job at startup, and updates only apply to notes nobody has updated in the meantime.
+ * A note that can't be read or rendered is logged, counted and skipped; only losing Mongo starts the walk again.
+ */
+@Component
+class NoteRerenderer {
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    @Autowired
+    private NoteRenderer noteRenderer;
+    @Autowired
+    private FrontPageCache frontPageCache;
+    @Autowired
+    private NoteIndex noteIndex;
+    @Autowired
+    private NoteCompression noteCompression;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ExecutorService pool;
+    private Thread job;
+    private Counter rerendered;
+    private Counter failed;
+    private volatile boolean running;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!properties.isNotesRerenderEnabled()) {
+            return;
+        }
+        rerendered = meterRegistry.counter("knote.notes.rerendered");
+        failed = meterRegistry.counter("knote.notes.rerender.failed");
+        //Only one batch is submitted at a time, so the queue never holds more than a batch
+        pool = Executors.newFixedThreadPool(properties.getNotesRerenderThreads(), task -> {
+            Thread thread = new Thread(task, "note-render");
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        job = new Thread(() -> {
+            while (running) {
+                try {
+                    run();
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                } catch (DataAccessResourceFailureException e) {
+                    if (!running) {
+                        return;
+                    }
+                    //Notes already done no longer match the query, so the walk picks up where it stopped
+                    System.out.println("> Re-rendering notes failed, retrying: " + e.getMessage());
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                } catch (Exception e) {
+                    //Anything else would fail the same way on every walk
+                    System.out.println("> Re-rendering notes stopped: " + e.getMessage());
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }, "note-rerender");
+        job.setDaemon(true);
+        job.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (job == null) {
+            return;
+        }
+        running = false;
+        job.interrupt();
+        job.join(5000);
+        pool.shutdownNow();
+    }
+
+    private void run() throws Exception {
+        int batchSize = properties.getNotesRerenderBatchSize();
+        Query query = new Query(new Criteria().orOperator(
+                where("markdown").exists(true).and("renderVersion").not().gte(NoteRenderer.VERSION),
+                where("createdAt").exists(false)));
+        //The HTML isn't needed to render it again
+        query.fields().include("markdown").include("renderVersion").include("createdAt");
+        //A walk with pauses can leave the cursor idle for longer than the server keeps it
+        query.cursorBatchSize(batchSize).noCursorTimeout();
+
+        long updated = 0;
+        try (CloseableIterator<Note> notes = mongoTemplate.stream(query, Note.class)) {
+            List<Note> batch = new ArrayList<>(batchSize);
+            while (running && notes.hasNext()) {
+                Note note = read(notes);
+                if (note != null) {
+                    batch.add(note);
+                }
+                if (batch.size() == batchSize) {
+                    updated += update(batch);
+                    batch.clear();
+                    Thread.sleep(properties.getNotesRerenderPause());
+                }
+            }
+            if (running && !batch.isEmpty()) {
+                updated += update(batch);
+            }
+        }
+        if (updated > 0) {
+            System.out.println("> Re-rendered " + updated + " notes with version " + NoteRenderer.VERSION);
+        }
+    }
+
+    private Note read(CloseableIterator<Note> notes) {
+        try {
+            return notes.next();
+        } catch (DataAccessResourceFailureException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            //The document was fetched but couldn't be mapped to a note
+            skip("a note", e);
+            return null;
+        }
+    }
+
+    private void skip(String note, Exception e) {
+        failed.increment();
+        System.out.println("> Could not re-render " + note + ", skipping it: " + e.getMessage());
+    }
+
+    private int update(List<Note> batch) throws Exception {
+        List<Future<String>> rendered = new ArrayList<>(batch.size());
+        for (Note note : batch) {
+            rendered.add(pool.submit(() -> noteRenderer.isStale(note) ? noteRenderer.render(note.getMarkdown()) : null));
+        }
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Note.class);
+        List<Note> changed = new ArrayList<>();
+        //The notes in the order of their updates, which bulk errors refer to
+        List<Note> updated = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Note note = batch.get(i);
+            String html;
+            try {
+                html = rendered.get(i).get();
+            } catch (ExecutionException e) {
+                skip("note " + note.getId(), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                continue;
+            }
+            Update update = new Update();
+            if (html != null) {
+                //Updates bypass the Note converter, so the HTML is deflated here as a save would
+                update.set("description", noteCompression.encode(html)).set("renderVersion", NoteRenderer.VERSION);
+                changed.add(new Note(note.getId(), html));
+            }
+            if (note.getCreatedAt() == null) {
+                update.set("createdAt", new ObjectId(note.getId()).getDate());
+            }
+            //A note another replica has already rendered again is left alone
+            bulk.updateOne(new Query(where("id").is(note.getId())
+                    .and("renderVersion").is(note.getRenderVersion())), update);
+            updated.add(note);
+        }
+        if (updated.isEmpty()) {
+            return 0;
+        }
+        int modified;
+        try {
+            modified = bulk.execute().getModifiedCount();
+        } catch (BulkOperationException e) {
+            //Unordered updates keep going after an error, so only the failed notes are left behind
+            for (BulkWriteError error : e.getErrors()) {
+                Note note = updated.get(error.getIndex());
+                skip("note " + note.getId(), new IllegalStateException(error.getMessage()));
+                changed.removeIf(html -> html.getId().equals(note.getId()));
+            }
+            modified = e.getResult().getModifiedCount();
+        }
+        if (!changed.isEmpty()) {
+            changed.forEach(noteIndex::add);
+            frontPageCache.invalidate();
+            rerendered.increment(changed.size());
+        }
+        return modified;
+    }
+}
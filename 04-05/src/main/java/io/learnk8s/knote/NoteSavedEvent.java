@@ -0,0 +1,33 @@
+package io.learnk8s.knote;
+
+/**
+ * Published when a note is stored, either by this instance or, through the change stream, by another replica.
+ * Only notes that were just published are new to readers; imports and updates of stored notes are not.
+ */
+class NoteSavedEvent {
+
+    private final Note note;
+    private final boolean remote;
+    private final boolean published;
+
+    NoteSavedEvent(Note note, boolean remote, boolean published) {
+        this.note = note;
+        this.remote = remote;
+        this.published = published;
+    }
+
+    Note getNote() {
+        return note;
+    }
+
+    boolean isRemote() {
+        return remote;
+    }
+
+    /**
+     * True for a note inserted as new, false for imported notes and notes that were updated.
+     */
+    boolean isPublished() {
+        return published;
+    }
+}
@@ -0,0 +1,208 @@
+package io.learnk8s.knote;
+
+import com.mongodb.BulkWriteError;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Saves notes, either one by one or, with notes.writeBehind.enabled, in batches.
+ * Batched notes are queued and written with one unordered bulk insert per batch;
+ * each caller still waits until the batch holding its note has been acknowledged by Mongo.
+ */
+@Component
+class NoteWriter {
+
+    private static class Pending {
+        private final Note note;
+        private final CompletableFuture<Note> saved = new CompletableFuture<>();
+
+        Pending(Note note) {
+            this.note = note;
+        }
+    }
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private CausalSessions causalSessions;
+
+    private BlockingQueue<Pending> queue;
+    //Every note that has been queued and not answered yet, so none is left waiting after shutdown
+    private final Set<Pending> unanswered = ConcurrentHashMap.newKeySet();
+    private Thread writer;
+    private DistributionSummary batches;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        //A full queue makes publishers wait instead of growing without bound
+        queue = new LinkedBlockingQueue<>(properties.getNotesWriteBehindBatchSize() * 16);
+        batches = meterRegistry.summary("knote.notes.writebehind.batch");
+        Gauge.builder("knote.notes.writebehind.queued", queue, BlockingQueue::size).register(meterRegistry);
+        running = true;
+        writer = new Thread(this::run, "note-writer");
+        writer.setDaemon(true);
+        writer.start();
+        System.out.println("> Write-behind enabled: batches of " + properties.getNotesWriteBehindBatchSize()
+                + " notes, " + properties.getNotesWriteBehindLinger() + " ms linger");
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        //The writer keeps flushing until the queue is empty
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+        //Notes queued while the writer was stopping
+        List<Pending> left = new ArrayList<>();
+        queue.drainTo(left);
+        if (!left.isEmpty()) {
+            flush(left);
+        }
+        //A batch the writer was still holding when the wait ran out
+        for (Pending pending : unanswered) {
+            pending.saved.completeExceptionally(new IllegalStateException("Note writer stopped before the note was saved"));
+        }
+    }
+
+    boolean isEnabled() {
+        return properties.isNotesWriteBehindEnabled();
+    }
+
+    /**
+     * Saves a new note and returns it with its id once it is stored.
+     */
+    Note save(Note note) {
+        if (!isEnabled()) {
+            return insert(note);
+        }
+        try {
+            return submit(note).get(properties.getNotesWriteBehindTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while saving a note", e);
+        } catch (TimeoutException e) {
+            //The note may still be written with its batch, but the caller can't wait for it
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Saving the note took too long");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Queues a new note for the next batch, or writes it straight away once the writer has stopped.
+     * Only for write-behind mode.
+     */
+    CompletableFuture<Note> submit(Note note) throws InterruptedException {
+        //Ids are made here so the order of the notes doesn't depend on how the batch is written
+        note.setId(new ObjectId().toHexString());
+        if (!running) {
+            return CompletableFuture.completedFuture(insert(note));
+        }
+        Pending pending = new Pending(note);
+        unanswered.add(pending);
+        pending.saved.whenComplete((saved, error) -> unanswered.remove(pending));
+        if (!queue.offer(pending, properties.getNotesWriteBehindTimeout(), TimeUnit.MILLISECONDS)) {
+            pending.saved.completeExceptionally(
+                    new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many notes waiting to be saved"));
+            return pending.saved;
+        }
+        //The writer may have stopped and the queue been drained for the last time between the check and the offer.
+        //Whoever takes the note out of the queue answers it, so it is written here only if it is still there
+        if (!running && queue.remove(pending)) {
+            try {
+                pending.saved.complete(insert(note));
+            } catch (RuntimeException e) {
+                pending.saved.completeExceptionally(e);
+            }
+        }
+        return pending.saved;
+    }
+
+    private Note insert(Note note) {
+        return causalSessions.write(mongo -> mongo.insert(note));
+    }
+
+    private void run() {
+        int batchSize = properties.getNotesWriteBehindBatchSize();
+        long linger = TimeUnit.MILLISECONDS.toNanos(properties.getNotesWriteBehindLinger());
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<Pending> batch = new ArrayList<>(batchSize);
+                batch.add(first);
+                //Wait a little for more notes, unless the batch fills up first
+                long deadline = System.nanoTime() + linger;
+                while (batch.size() < batchSize) {
+                    Pending next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                //Interrupts don't stop the writer before the queue is drained
+                running = false;
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        batches.record(batch.size());
+        try {
+            causalSessions.write(mongo -> mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, Note.class)
+                    .insert(batch.stream().map(pending -> pending.note).collect(Collectors.toList()))
+                    .execute());
+            batch.forEach(pending -> pending.saved.complete(pending.note));
+        } catch (BulkOperationException e) {
+            //Unordered inserts keep going after an error, so only the failed notes are reported
+            List<Integer> failed = e.getErrors().stream().map(BulkWriteError::getIndex).collect(Collectors.toList());
+            for (int i = 0; i < batch.size(); i++) {
+                if (failed.contains(i)) {
+                    batch.get(i).saved.completeExceptionally(e);
+                } else {
+                    batch.get(i).saved.complete(batch.get(i).note);
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            batch.forEach(pending -> pending.saved.completeExceptionally(e));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package io.learnk8s.knote;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * JSON access to the notes for scripts and other services.
+ * Notes are listed newest first in pages that continue from the last id of the previous page,
+ * and can be exported and imported in bulk as newline-delimited JSON.
+ */
+@RestController
+@Profile("!reactive")
+@RequestMapping("/api/notes")
+class NotesApiController {
+
+    static final String NDJSON = "application/x-ndjson";
+
+    private static final int MAX_LIMIT = 1000;
+
+    static class Page {
+        private final List<Note> notes;
+        private final String next;
+
+        Page(List<Note> notes, String next) {
+            this.notes = notes;
+            this.next = next;
+        }
+
+        public List<Note> getNotes() {
+            return notes;
+        }
+
+        /**
+         * Value for the before parameter of the next page, or null on the last page.
+         */
+        public String getNext() {
+            return next;
+        }
+    }
+
+    static class ImportResult {
+        private final long imported;
+
+        ImportResult(long imported) {
+            this.imported = imported;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+    }
+
+    @Autowired
+    private NotesRepository notesRepository;
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private ApplicationEventPublisher publisher;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private NoteRenderer noteRenderer;
+
+    @GetMapping
+    public Page list(@RequestParam(required = false) String before,
+                     @RequestParam(required = false) Integer limit,
+                     WebRequest request) {
+        if (limit != null && limit < 1) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be at least 1");
+        }
+        if (request.checkNotModified(collectionEtag())) {
+            return null;
+        }
+        int pageSize = Math.min(limit != null ? limit : properties.getNotesPageSize(), MAX_LIMIT);
+        //Fetch one extra note to know whether there is a next page
+        Pageable page = PageRequest.of(0, pageSize + 1);
+        List<Note> notes = before != null
+                ? notesRepository.findByIdLessThanOrderByIdDesc(objectId(before), page)
+                : notesRepository.findAllByOrderByIdDesc(page);
+        String next = null;
+        if (notes.size() > pageSize) {
+            notes = notes.subList(0, pageSize);
+            next = notes.get(pageSize - 1).getId();
+        }
+        return new Page(notes, next);
+    }
+
+    @GetMapping("/{id}")
+    public Note get(@PathVariable String id) {
+        return notesRepository.findById(id)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No note " + id));
+    }
+
+    @GetMapping(value = "/export", produces = NDJSON)
+    public void exportNotes(HttpServletResponse response) throws IOException {
+        response.setContentType(NDJSON);
+        OutputStream out = response.getOutputStream();
+        //The notes are written as the cursor reads them, one batch in memory at a time
+        try (Stream<Note> notes = notesRepository.streamAllByOrderByIdDesc()) {
+            Iterator<Note> iterator = notes.iterator();
+            while (iterator.hasNext()) {
+                out.write(objectMapper.writeValueAsBytes(iterator.next()));
+                out.write('\n');
+            }
+        }
+    }
+
+    @PostMapping(value = "/import", consumes = NDJSON)
+    public ImportResult importNotes(HttpServletRequest request) throws Exception {
+        int batchSize = properties.getNotesImportBatchSize();
+        List<Note> batch = new ArrayList<>(batchSize);
+        long imported = 0;
+        long line = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8));
+        String json;
+        while ((json = reader.readLine()) != null) {
+            line++;
+            if (json.trim().isEmpty()) {
+                continue;
+            }
+            batch.add(parse(json, line));
+            if (batch.size() == batchSize) {
+                imported += insert(batch, imported);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            imported += insert(batch, imported);
+        }
+        return new ImportResult(imported);
+    }
+
+    private Note parse(String json, long line) throws Exception {
+        Note note;
+        try {
+            note = objectMapper.readValue(json, Note.class);
+        } catch (JsonProcessingException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Line " + line + " is not a note", e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        //Notes with markdown but no HTML are rendered here, the other stale ones by the re-render job
+        if (note.getDescription() == null && note.getMarkdown() != null) {
+            note.setDescription(noteRenderer.renderLimited(note.getMarkdown()));
+            note.setRenderVersion(NoteRenderer.VERSION);
+        }
+        if (note.getDescription() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Line " + line + " has no description");
+        }
+        //Ids are ObjectIds so that imported notes sort by creation time with the others
+        if (note.getId() == null) {
+            note.setId(new ObjectId().toHexString());
+        } else if (!ObjectId.isValid(note.getId())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Line " + line + " has an invalid id");
+        }
+        return note;
+    }
+
+    private int insert(List<Note> batch, long imported) {
+        try {
+            notesRepository.insert(batch);
+        } catch (DuplicateKeyException e) {
+            //Inserts are ordered, so the notes before the duplicate are stored
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "A note in the batch after the first "
+                    + imported + " notes already exists", e);
+        }
+        batch.forEach(note -> publisher.publishEvent(new NoteSavedEvent(note, false, false)));
+        return batch.size();
+    }
+
+    private String collectionEtag() {
+        //Notes only change when a new render version renders them again, so with the newest id and the count
+        //the version is enough to tell collections apart
+        Note newest = notesRepository.findFirstByOrderByIdDesc();
+        return "\"" + (newest != null ? newest.getId() : "empty") + "-" + notesRepository.count()
+                + "-" + NoteRenderer.VERSION + "\"";
+    }
+
+    private static ObjectId objectId(String id) {
+        if (!ObjectId.isValid(id)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid note id " + id);
+        }
+        return new ObjectId(id);
+    }
+}
@@ -0,0 +1,174 @@
+package io.learnk8s.knote;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.messaging.ChangeStreamRequest;
+import org.springframework.data.mongodb.core.messaging.DefaultMessageListenerContainer;
+import org.springframework.data.mongodb.core.messaging.Message;
+import org.springframework.data.mongodb.core.messaging.MessageListenerContainer;
+import org.springframework.data.mongodb.core.messaging.Subscription;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Tails the notes collection with a change stream so that every replica hears about notes saved elsewhere.
+ * Change streams need MongoDB to run as a replica set. With notes.changeStream.enabled=auto, the default,
+ * the listener runs when the connection string names one; true and false turn it on and off regardless.
+ * The stream ends on errors such as a primary stepping down; it is then opened again with backoff,
+ * resuming after the last change it delivered so none are missed.
+ */
+@Component
+class NotesChangeListener {
+
+    private static final long INITIAL_DELAY = 1000;
+    private static final long MAX_DELAY = 30000;
+    //The oplog no longer reaches back to the resume token, so the stream has to start from now
+    private static final Set<Integer> HISTORY_LOST = new HashSet<>(Arrays.asList(136, 280, 286));
+
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private MongoClient mongoClient;
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    @Autowired
+    private ApplicationEventPublisher publisher;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "change-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //Failures in a row, for the backoff, and failures ever, to tell whether a subscription ended while opening
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong errors = new AtomicLong();
+
+    private boolean enabled;
+    private MessageListenerContainer container;
+    private volatile Subscription subscription;
+    private volatile BsonValue resumeToken;
+    private volatile long listeningSince;
+
+    @PostConstruct
+    public void init() {
+        String setting = properties.getNotesChangeStreamEnabled();
+        //The driver only connects to a replica set when the connection string names one, so no round trip is needed
+        enabled = "auto".equalsIgnoreCase(setting)
+                ? mongoClient.getMongoClientOptions().getRequiredReplicaSetName() != null
+                : Boolean.parseBoolean(setting);
+        if (!enabled) {
+            return;
+        }
+        container = new DefaultMessageListenerContainer(mongoTemplate);
+        container.start();
+        scheduler.execute(this::subscribe);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        if (container != null) {
+            container.stop();
+        }
+    }
+
+    /**
+     * True when the listener runs, so saves on every replica, this one included, arrive through it.
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * True when the stream has been open since at, so every change after it has been or will be delivered.
+     */
+    boolean isListeningSince(long at) {
+        long since = listeningSince;
+        return since != 0 && since <= at;
+    }
+
+    private void subscribe() {
+        ChangeStreamRequest.ChangeStreamRequestBuilder<Note> request = ChangeStreamRequest.builder(this::onChange)
+                .collection("notes")
+                .filter(newAggregation(match(where("operationType").in("insert", "update", "replace"))))
+                .fullDocumentLookup(FullDocument.UPDATE_LOOKUP);
+        if (resumeToken != null) {
+            request.resumeToken(resumeToken);
+        }
+        long errorsBefore = errors.get();
+        subscription = container.register(request.build(), Note.class, this::onError);
+        try {
+            //Changes made before the cursor is open are not delivered, unless they come after the resume token.
+            //Waiting in steps lets a failed open go to the retry scheduled on this thread
+            for (long waited = 0; waited < MAX_DELAY && errors.get() == errorsBefore; waited += 100) {
+                if (subscription.await(Duration.ofMillis(100))) {
+                    if (errors.get() == errorsBefore) {
+                        listeningSince = System.currentTimeMillis();
+                        System.out.println("> Listening for note changes");
+                    }
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void onChange(Message<ChangeStreamDocument<Document>, Note> message) {
+        failures.set(0);
+        if (message.getRaw() != null) {
+            resumeToken = message.getRaw().getResumeToken();
+        }
+        if (message.getBody() != null) {
+            //Updates come from the re-render job and replaces from re-saving a note; neither is a new note
+            boolean inserted = message.getRaw() != null && message.getRaw().getOperationType() == OperationType.INSERT;
+            publisher.publishEvent(new NoteSavedEvent(message.getBody(), true, inserted));
+        }
+    }
+
+    private void onError(Throwable e) {
+        //The error ends the container's task, which stops reading for good
+        errors.incrementAndGet();
+        listeningSince = 0;
+        //Errors arrive translated to Spring's exceptions
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof MongoCommandException && HISTORY_LOST.contains(((MongoCommandException) cause).getErrorCode())) {
+            resumeToken = null;
+        }
+        int attempt = failures.incrementAndGet();
+        long delay = Math.min(INITIAL_DELAY << Math.min(attempt - 1, 20), MAX_DELAY);
+        System.out.println("> Change stream failed (attempt " + attempt + "), reopening in " + delay + " ms: " + e);
+        try {
+            scheduler.schedule(() -> {
+                container.remove(subscription);
+                subscribe();
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException stopped) {
+            //Shutting down
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package io.learnk8s.knote;
+
+import com.mongodb.MongoCompressor;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.util.List;
+
+/**
+ * Settings for the "reactive" profile, which serves the app with WebFlux on Netty.
+ */
+@Configuration
+@Profile("reactive")
+class ReactiveConfig {
+
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        //Tomcat is on the classpath for the servlet mode and would be picked first
+        return new NettyReactiveWebServerFactory();
+    }
+
+    @Bean
+    public MongoClientSettingsBuilderCustomizer mongoSettingsCustomizer(MongoMetrics mongoMetrics, KnoteProperties properties) {
+        //The reactive pages read without causal sessions, so on a secondary a browser could miss the note it just published
+        if (!"primary".equalsIgnoreCase(properties.getMongoReadPreference())) {
+            System.out.println("> mongo.read.preference and mongo.read.maxStaleness are not supported with the reactive profile, reading from the primary");
+        }
+        List<MongoCompressor> compressors = KnoteConfig.compressors(properties);
+        return settings -> {
+            settings.addCommandListener(mongoMetrics)
+                    .applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(mongoMetrics));
+            //Customizers run after spring.data.mongodb.uri is applied, so compressors it names are only replaced by a list
+            if (!compressors.isEmpty()) {
+                settings.compressorList(compressors);
+            }
+        };
+    }
+}
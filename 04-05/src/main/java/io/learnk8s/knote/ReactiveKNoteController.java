@@ -0,0 +1,346 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.Hints;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.codec.HttpMessageReader;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.multipart.FormFieldPart;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The same pages and endpoints as {@link KNoteController}, served by WebFlux when the "reactive" profile is active.
+ * Notes come from the reactive Mongo driver; the image store and the disk cache are blocking and run on the elastic scheduler.
+ */
+@Controller
+@Profile("reactive")
+class ReactiveKNoteController {
+
+    private static final ResolvableType MULTIPART_DATA_TYPE =
+            ResolvableType.forClassWithGenerics(MultiValueMap.class, String.class, Part.class);
+
+    @Autowired
+    private ReactiveNotesRepository notesRepository;
+    @Autowired
+    private NoteWriter noteWriter;
+    @Autowired
+    private KnoteProperties properties;
+    @Autowired
+    private ImageService imageService;
+    @Autowired
+    private Bulkheads bulkheads;
+    @Autowired
+    private FrontPageCache frontPageCache;
+    @Autowired
+    private NoteIndex noteIndex;
+    @Autowired
+    private ApplicationEventPublisher publisher;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private NoteRenderer noteRenderer;
+    @Autowired
+    private ServerCodecConfigurer codecs;
+
+    @GetMapping("/")
+    public Mono<String> index(@RequestParam(required = false) String before, Model model) {
+        return getAllNotes("index", before, model).thenReturn("index");
+    }
+
+    @GetMapping("/search")
+    public Mono<String> search(@RequestParam(defaultValue = "") String q,
+                               @RequestParam(defaultValue = "0") int page,
+                               Model model) {
+        int pageSize = properties.getNotesPageSize();
+        int requested = Math.max(page, 0);
+        NoteIndex.Result result = noteIndex.search(q, requested, pageSize);
+        return timed("search", "query", notesRepository.findAllById(result.getIds()).collectMap(Note::getId))
+                .map(found -> {
+                    List<Note> notes = new ArrayList<>();
+                    for (String id : result.getIds()) {
+                        if (found.containsKey(id)) {
+                            notes.add(found.get(id));
+                        }
+                    }
+                    model.addAttribute("q", q);
+                    model.addAttribute("notes", notes);
+                    model.addAttribute("total", result.getTotal());
+                    if ((requested + 1L) * pageSize < result.getTotal()) {
+                        model.addAttribute("nextPage", requested + 1);
+                    }
+                    return "index";
+                });
+    }
+
+    @PostMapping("/note")
+    public Mono<String> saveNotes(ServerWebExchange exchange, Model model) {
+        long maxSize = properties.getImagesUploadMaxSize() + 64 * 1024;
+        if (exchange.getRequest().getHeaders().getContentLength() > maxSize) {
+            return Mono.error(tooLarge());
+        }
+        Mono<String> handled = readParts(exchange.getRequest(), maxSize).flatMap(parts -> {
+            String description = value(parts, "description");
+            String publish = field(exchange, parts, "publish");
+            String upload = field(exchange, parts, "upload");
+            if (publish != null && publish.equals("Publish")) {
+                return saveNote(description == null ? "" : description, model).thenReturn("redirect:/");
+            }
+            if (upload != null && upload.equals("Upload")) {
+                String text = description == null ? "" : description;
+                Part image = parts.getFirst("image");
+                Mono<String> stored = image instanceof FilePart && !((FilePart) image).filename().isEmpty()
+                        ? uploadImage((FilePart) image)
+                        : Mono.empty();
+                return stored.map(src -> text + " ![](" + src + ")")
+                        .defaultIfEmpty(text)
+                        .doOnNext(value -> model.addAttribute("description", value))
+                        .then(getAllNotes("saveNotes", null, model))
+                        .thenReturn("index");
+            }
+            return Mono.just("index");
+        });
+        //Uploads wait on the client and on MinIO, so they count against their own bulkhead
+        return "Upload".equals(exchange.getRequest().getQueryParams().getFirst("upload"))
+                ? bulkheads.getUploads().guard(handled)
+                : handled;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Mono<MultiValueMap<String, Part>> readParts(ServerHttpRequest request, long maxSize) {
+        if (!MediaType.MULTIPART_FORM_DATA.isCompatibleWith(request.getHeaders().getContentType())) {
+            return Mono.just(new LinkedMultiValueMap<>());
+        }
+        //A chunked body has no Content-Length, so the bytes are counted as they arrive and the parser is stopped
+        //before it spools more than an image to disk
+        AtomicLong received = new AtomicLong();
+        ServerHttpRequest limited = new ServerHttpRequestDecorator(request) {
+            @Override
+            public Flux<DataBuffer> getBody() {
+                return super.getBody().doOnNext(buffer -> {
+                    if (received.addAndGet(buffer.readableByteCount()) > maxSize) {
+                        DataBufferUtils.release(buffer);
+                        throw tooLarge();
+                    }
+                });
+            }
+        };
+        HttpMessageReader<MultiValueMap<String, Part>> reader = (HttpMessageReader<MultiValueMap<String, Part>>) codecs.getReaders().stream()
+                .filter(candidate -> candidate.canRead(MULTIPART_DATA_TYPE, MediaType.MULTIPART_FORM_DATA))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No multipart reader"));
+        //The parser wraps the error from the body in its own exception
+        return reader.readMono(MULTIPART_DATA_TYPE, limited, Hints.none())
+                .onErrorMap(ex -> ex.getCause() instanceof ResponseStatusException, Throwable::getCause);
+    }
+
+    private static String field(ServerWebExchange exchange, MultiValueMap<String, Part> parts, String name) {
+        String param = exchange.getRequest().getQueryParams().getFirst(name);
+        return param != null ? param : value(parts, name);
+    }
+
+    private static String value(MultiValueMap<String, Part> parts, String name) {
+        Part part = parts.getFirst(name);
+        return part instanceof FormFieldPart ? ((FormFieldPart) part).value() : null;
+    }
+
+    private Mono<String> uploadImage(FilePart part) {
+        //The multipart reader has already spooled the part to disk, so copying it out doesn't hold it in memory
+        String contentType = part.headers().getContentType() != null ? part.headers().getContentType().toString() : null;
+        return Mono.fromCallable(() -> Files.createTempFile("knote-upload-", ".tmp"))
+                .subscribeOn(Schedulers.elastic())
+                .flatMap(tmp -> part.transferTo(tmp.toFile())
+                        .then(Mono.fromCallable(() -> {
+                            if (Files.size(tmp) > properties.getImagesUploadMaxSize()) {
+                                throw tooLarge();
+                            }
+                            try (InputStream in = Files.newInputStream(tmp)) {
+                                return imageService.upload(part.filename(), contentType, in);
+                            }
+                        }).subscribeOn(Schedulers.elastic()))
+                        .doFinally(signal -> delete(tmp)));
+    }
+
+    private ResponseStatusException tooLarge() {
+        return new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Images can be at most "
+                + properties.getImagesUploadMaxSize() + " bytes");
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @GetMapping("/img/{name}")
+    public Mono<Void> getImageByName(@PathVariable String name,
+                                     @RequestParam(required = false) Integer w,
+                                     ServerWebExchange exchange) {
+        if (imageService.isRedirect()) {
+            return bulkheads.getImages().guard(Mono.fromCallable(() -> imageService.redirect(name, w))
+                    .subscribeOn(Schedulers.elastic())
+                    .flatMap(redirect -> sendRedirect(redirect, exchange.getResponse())));
+        }
+        //Looking the image up may talk to MinIO with a blocking client
+        return bulkheads.getImages().guard(Mono.fromCallable(() -> imageService.find(name, w))
+                .subscribeOn(Schedulers.elastic())
+                .flatMap(found -> writeImage(found, exchange).doFinally(signal -> found.release())));
+    }
+
+    private Mono<Void> sendRedirect(ImageService.Redirect redirect, ServerHttpResponse response) {
+        //The client downloads the image from MinIO, so the bytes never pass through the app
+        response.getHeaders().set(HttpHeaders.CACHE_CONTROL, redirect.getCacheControl());
+        response.getHeaders().set(HttpHeaders.LOCATION, redirect.getLocation());
+        response.setStatusCode(HttpStatus.FOUND);
+        meterRegistry.counter("knote.images.redirects").increment();
+        return response.setComplete();
+    }
+
+    private Mono<Void> writeImage(ImageService.Image found, ServerWebExchange exchange) {
+        ServerHttpRequest request = exchange.getRequest();
+        ServerHttpResponse response = exchange.getResponse();
+        ImageService.Response answer = imageService.respond(found, request.getMethod(), request.getHeaders());
+        response.setStatusCode(answer.getStatus());
+        response.getHeaders().putAll(answer.getHeaders());
+        if (!answer.hasBody()) {
+            return response.setComplete();
+        }
+        ImageCache.Entry image = found.getEntry();
+        long position = answer.getStart();
+        long count = answer.getCount();
+        Timer.Sample transfer = Timer.start(meterRegistry);
+        Mono<Void> body;
+        if (image.getFile() != null && response instanceof ZeroCopyHttpOutputMessage) {
+            //Netty sends the file with sendfile
+            body = ((ZeroCopyHttpOutputMessage) response).writeWith(image.getFile(), position, count);
+        } else if (image.getFile() != null) {
+            Flux<DataBuffer> content = DataBufferUtils.read(new FileSystemResource(image.getFile()), position,
+                    response.bufferFactory(), ImageService.IMAGE_BUFFER_SIZE);
+            body = response.writeWith(DataBufferUtils.takeUntilByteCount(content, count));
+        } else {
+            //A buffer is only read from the store when the socket asks for one, so a slow client slows the read
+            //down instead of filling memory
+            Flux<DataBuffer> content = DataBufferUtils.readInputStream(
+                    () -> imageService.open(found.getObjectName(), position, count),
+                    response.bufferFactory(), ImageService.IMAGE_BUFFER_SIZE);
+            body = response.writeWith(content.subscribeOn(Schedulers.elastic()));
+        }
+        return body.doOnSuccess(done -> {
+            transfer.stop(stage("getImageByName", "transfer"));
+            meterRegistry.counter("knote.images.served", "source", found.getSource()).increment(count);
+        });
+    }
+
+    private Mono<Void> getAllNotes(String handler, String before, Model model) {
+        int pageSize = properties.getNotesPageSize();
+        if (before == null && frontPageCache.isEnabled()) {
+            //The cache renders with a blocking supplier, so it is called off the event loop
+            Mono<FrontPageCache.Page> page = Mono.fromCallable(() ->
+                    frontPageCache.get(() -> findNotes(handler, null, pageSize).collectList().block(), pageSize))
+                    .subscribeOn(Schedulers.elastic());
+            return timed(handler, "frontPage", page).doOnNext(cached -> {
+                model.addAttribute("notesHtml", cached.getHtml());
+                if (cached.getOlder() != null) {
+                    model.addAttribute("older", cached.getOlder());
+                }
+            }).then();
+        }
+        return findNotes(handler, before, pageSize).collectList().doOnNext(notes -> {
+            if (before != null) {
+                model.addAttribute("before", before);
+            }
+            if (notes.size() > pageSize) {
+                notes = notes.subList(0, pageSize);
+                model.addAttribute("older", notes.get(pageSize - 1).getId());
+            }
+            model.addAttribute("notes", notes);
+        }).then();
+    }
+
+    private Flux<Note> findNotes(String handler, String before, int pageSize) {
+        //Fetch one extra note to know whether there is an older page
+        Pageable page = PageRequest.of(0, pageSize + 1);
+        Flux<Note> notes = before != null && ObjectId.isValid(before)
+                ? notesRepository.findByIdLessThanOrderByIdDesc(new ObjectId(before), page)
+                : notesRepository.findAllByOrderByIdDesc(page);
+        return Flux.defer(() -> {
+            Timer.Sample query = Timer.start(meterRegistry);
+            return notes.doOnComplete(() -> query.stop(stage(handler, "query")));
+        });
+    }
+
+    private Mono<Void> saveNote(String description, Model model) {
+        if (description.trim().isEmpty()) {
+            return Mono.empty();
+        }
+        //You need to translate markup to HTML, and the markdown is kept to render it again later.
+        //Waiting for the render bulkhead blocks, so it happens off the event loop
+        Mono<Note> rendered = Mono.fromCallable(() -> noteRenderer.newNote(description.trim()))
+                .subscribeOn(Schedulers.elastic());
+        return timed("saveNotes", "markdown", rendered)
+                .flatMap(note -> {
+                    //Queueing may wait for room, so it happens off the event loop
+                    Mono<Note> saved = noteWriter.isEnabled()
+                            ? Mono.fromCallable(() -> noteWriter.submit(note)).subscribeOn(Schedulers.elastic()).flatMap(Mono::fromFuture)
+                            : notesRepository.save(note);
+                    return timed("saveNotes", "save", saved);
+                })
+                .doOnNext(stored -> {
+                    publisher.publishEvent(new NoteSavedEvent(stored, false, true));
+                    //After publish you need to clean up the textarea
+                    model.addAttribute("description", "");
+                })
+                .then();
+    }
+
+    private <T> Mono<T> timed(String handler, String stage, Mono<T> work) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            return work.doOnSuccess(done -> sample.stop(stage(handler, stage)));
+        });
+    }
+
+    private Timer stage(String handler, String stage) {
+        return meterRegistry.timer("knote.stage", "handler", handler, "stage", stage);
+    }
+}
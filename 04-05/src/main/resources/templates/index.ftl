@@ -13,7 +13,7 @@
             <input class="f6 link dim br1 ba b--black-20 ph3 pv2 mb2 dib black bg-white pointer" type="file"
                    name="image">
             <input class="f6 link dim br1 ba bw1 ph3 pv2 mb2 dib black bg-white pointer ml2" type="submit"
-                   value="Upload" name="upload">
+                   value="Upload" name="upload" formaction="/note?upload=Upload">
         </li>
         <li class="mv3"><label class="f6 b db mb2" for="description">Write your content here</label>
             <textarea class="f4 db border-box hover-black w-100 measure ba b--black-20 pa2 br2 mb2" rows="5"
@@ -23,17 +23,111 @@
         </li>
     </ol>
 </form>
-<ul class="list pl0"><p class="f6 b db mb2">Notes</p>
-    <#if notes??>
-        <#list notes as note>
-            <li class="mv3 bb bw2 b--light-yellow bg-washed-yellow ph4 pv2"><p class="measure"></p>
-                <p>${note}</p>
-                <p></p>
-            </li>
-        <#else>
-            <p class="lh-copy f6">You don't have any notes yet.</p>
-        </#list>
-    </#if>
-</ul>
+<form action="/search" method="GET" class="mb3">
+    <input class="f6 ba b--black-20 br1 pa2 mb2 w-60" type="search" name="q" placeholder="Search notes"
+           value="<#if q??>${q?html}</#if>">
+    <input class="f6 link dim br1 ba bw1 ph3 pv2 mb2 dib black bg-white pointer ml2" type="submit" value="Search">
+</form>
+<#if q??>
+    <p class="f6 mb2">${total} <#if total == 1>note matches<#else>notes match</#if> "${q?html}"</p>
+</#if>
+<#-- A streamed page sends everything above the notes before rendering them -->
+<#if cursor??><#flush></#if>
+<#if notesHtml??>${notesHtml}<#else><#include "notes.ftl"></#if>
+<#if q??>
+    <p>
+        <a class="f6 link dim br1 ba b--black-20 ph3 pv2 mb2 dib black bg-white" href="/">All notes</a>
+        <#if nextPage??>
+            <a class="f6 link dim br1 ba b--black-20 ph3 pv2 mb2 dib black bg-white" href="/search?q=${q?url}&page=${nextPage}">More results</a>
+        </#if>
+    </p>
+</#if>
+<#if cursor?? && cursor.older??><#assign older = cursor.older></#if>
+<#if before?? || older??>
+    <p>
+        <#if before??>
+            <a class="f6 link dim br1 ba b--black-20 ph3 pv2 mb2 dib black bg-white" href="/">Newest notes</a>
+        </#if>
+        <#if older??>
+            <a class="f6 link dim br1 ba b--black-20 ph3 pv2 mb2 dib black bg-white" href="/?before=${older}">Older notes</a>
+        </#if>
+    </p>
+</#if>
+<#if feed??>
+<#-- New notes arrive over /notes/stream, so publishing doesn't reload the page -->
+<script>
+    (function () {
+        var list = document.getElementById('notes');
+        var form = document.querySelector('form[action="/note"]');
+        var publish = form.querySelector('input[name="publish"]');
+        var first = list.querySelector('li[id^="note-"]');
+        var feed = new EventSource('/notes/stream' + (first ? '?after=' + first.id.substring(5) : ''));
+        //Notes come from the feed and from publishing, in any order and sometimes twice
+        function show(html) {
+            var template = document.createElement('template');
+            template.innerHTML = html.trim();
+            var note = template.content.firstChild;
+            var existing = document.getElementById(note.id);
+            if (existing) {
+                list.replaceChild(note, existing);
+                return;
+            }
+            //The list is newest first; ids of the same length sort by creation time
+            var shown = list.querySelectorAll('li[id^="note-"]');
+            var next = null;
+            for (var i = 0; i < shown.length; i++) {
+                if (shown[i].id < note.id) {
+                    next = shown[i];
+                    break;
+                }
+            }
+            //Older than every note shown, so it belongs on an older page
+            if (!next && shown.length > 0) {
+                return;
+            }
+            var empty = document.getElementById('no-notes');
+            if (empty) {
+                empty.remove();
+            }
+            list.insertBefore(note, next);
+        }
+        feed.addEventListener('note', function (event) {
+            show(event.data);
+        });
+        //More notes were missed than one page holds
+        feed.addEventListener('reload', function () {
+            location.reload();
+        });
+        var ajax = true;
+        publish.addEventListener('click', function (event) {
+            if (!ajax || feed.readyState !== EventSource.OPEN) {
+                return;
+            }
+            event.preventDefault();
+            var data = new FormData(form);
+            data.delete('image');
+            data.append('publish', 'Publish');
+            fetch('/note', {method: 'POST', body: data, headers: {'X-Requested-With': 'XMLHttpRequest'}})
+                .then(function (response) {
+                    if (!response.ok) {
+                        throw new Error(response.statusText);
+                    }
+                    form.description.value = '';
+                    return response.text();
+                })
+                .then(function (html) {
+                    if (html) {
+                        show(html);
+                    }
+                })
+                .catch(function () {
+                    //Fall back to a normal post, which shows what went wrong
+                    ajax = false;
+                    publish.click();
+                });
+        });
+    })();
+</script>
+</#if>
 </body>
 </html>
\ No newline at end of file
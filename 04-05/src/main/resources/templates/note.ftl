@@ -0,0 +1,4 @@
+<li id="note-${note.id}" class="mv3 bb bw2 b--light-yellow bg-washed-yellow ph4 pv2"><p class="measure"></p>
+    <p>${note}</p>
+    <p></p>
+</li>
@@ -0,0 +1,10 @@
+<ul id="notes" class="list pl0"><p class="f6 b db mb2">Notes</p>
+    <#if notes??>
+        <#list notes as note>
+            <#include "note.ftl">
+            <#if cursor?? && cursor.batchDone><#flush></#if>
+        <#else>
+            <#if !q??><p id="no-notes" class="lh-copy f6">You don't have any notes yet.</p></#if>
+        </#list>
+    </#if>
+</ul>
\ No newline at end of file
@@ -0,0 +1,173 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkheadTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    //One thread and one queued request
+    private final Bulkhead bulkhead = new Bulkhead("test", 1, 1, meterRegistry);
+
+    @After
+    public void shutdown() {
+        bulkhead.shutdown();
+    }
+
+    @Test
+    public void answers503WhenThreadsAndQueueAreFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Future<?> running = run(bulkhead.submit(() -> {
+            started.countDown();
+            return release.await(5, TimeUnit.SECONDS);
+        }));
+        started.await(5, TimeUnit.SECONDS);
+        Future<?> queued = run(bulkhead.submit(() -> "queued"));
+
+        assertUnavailable(() -> bulkhead.submit(() -> "rejected"));
+        assertEquals(2, inflight());
+        assertEquals(1, meterRegistry.counter("knote.bulkhead.rejected", "bulkhead", "test").count(), 0);
+
+        release.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+        assertEquals(0, inflight());
+    }
+
+    @Test
+    public void failedWorkGivesItsPermitBack() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            try {
+                run(bulkhead.submit(() -> {
+                    throw new IOException("Client went away");
+                })).get(5, TimeUnit.SECONDS);
+                fail("Failure was swallowed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        assertEquals(0, inflight());
+    }
+
+    @Test
+    public void workRefusedByThePoolAnswers503AndGivesItsPermitBack() throws Exception {
+        bulkhead.shutdown();
+
+        WebAsyncTask<String> task = bulkhead.submit(() -> {
+            throw new AssertionError("Refused work ran");
+        });
+        try {
+            run(task).get(5, TimeUnit.SECONDS);
+            fail("Refused work completed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ResponseStatusException);
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((ResponseStatusException) e.getCause()).getStatus());
+        }
+        assertEquals(0, inflight());
+    }
+
+    @Test
+    public void callGivesItsPermitBackAfterTimeoutAndFailure() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            bulkhead.call(() -> release.await(5, TimeUnit.SECONDS), 50);
+            fail("Slow work did not time out");
+        } catch (TimeoutException expected) {
+        }
+        //Queued behind the slow work, so it is dropped when its time is up
+        try {
+            bulkhead.call(() -> {
+                throw new AssertionError("Dropped work ran");
+            }, 50);
+            fail("Queued work did not time out");
+        } catch (TimeoutException expected) {
+        }
+        //Both keep their permits until the thread gets to them
+        assertEquals(2, inflight());
+        release.countDown();
+        for (int i = 0; i < 100 && inflight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, inflight());
+
+        try {
+            bulkhead.call(() -> {
+                throw new IOException("Renderer failed");
+            }, 1000);
+            fail("Failure was swallowed");
+        } catch (IOException expected) {
+        }
+        assertEquals("ok", bulkhead.call(() -> "ok", 1000));
+        assertEquals(0, inflight());
+    }
+
+    @Test
+    public void callRefusedByThePoolAnswers503AndGivesItsPermitBack() throws Exception {
+        bulkhead.shutdown();
+
+        try {
+            bulkhead.call(() -> "refused", 1000);
+            fail("Refused work completed");
+        } catch (ResponseStatusException e) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+        }
+        assertEquals(0, inflight());
+    }
+
+    @Test
+    public void guardCountsReactiveWorkUntilItEnds() {
+        bulkhead.guard(Mono.never()).subscribe().dispose();
+        assertEquals(0, inflight());
+
+        try {
+            bulkhead.guard(Mono.error(new IOException("MinIO went away"))).block();
+            fail("Failure was swallowed");
+        } catch (RuntimeException expected) {
+        }
+        assertEquals(0, inflight());
+
+        bulkhead.guard(Mono.never()).subscribe();
+        bulkhead.guard(Mono.never()).subscribe();
+        try {
+            bulkhead.guard(Mono.just("rejected")).block();
+            fail("A full bulkhead let a request through");
+        } catch (ResponseStatusException e) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+        }
+    }
+
+    //Hands the task to its executor the way Spring MVC does when the handler returns it
+    private static Future<?> run(WebAsyncTask<?> task) {
+        return task.getExecutor().submit(task.getCallable());
+    }
+
+    private int inflight() {
+        return (int) meterRegistry.get("knote.bulkhead.inflight").gauge().value();
+    }
+
+    private static void assertUnavailable(Runnable request) {
+        try {
+            request.run();
+            fail("A full bulkhead let a request through");
+        } catch (ResponseStatusException e) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+        }
+    }
+}
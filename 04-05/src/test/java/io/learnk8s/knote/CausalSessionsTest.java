@@ -0,0 +1,169 @@
+package io.learnk8s.knote;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import org.bson.BsonTimestamp;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.servlet.http.Cookie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CausalSessionsTest {
+
+    private static final int WINDOW = 60;
+
+    private final KnoteProperties properties = mock(KnoteProperties.class);
+    private final MongoDbFactory mongoDbFactory = mock(MongoDbFactory.class);
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final MongoTemplate inSession = mock(MongoTemplate.class);
+    private final ClientSession session = mock(ClientSession.class);
+
+    @Before
+    public void setUp() {
+        when(properties.isMongoCausalEnabled()).thenReturn(true);
+        when(properties.getMongoReadPreference()).thenReturn("secondaryPreferred");
+        when(properties.getMongoCausalWindow()).thenReturn(WINDOW);
+        when(properties.getMongoCausalKey()).thenReturn("shared by every replica");
+        when(mongoDbFactory.getSession(any(ClientSessionOptions.class))).thenReturn(session);
+        when(mongoTemplate.withSession(session)).thenReturn(inSession);
+    }
+
+    @Test
+    public void readsWaitForTheWriteInTheCookie() {
+        CausalSessions replica = causalSessions();
+        BsonTimestamp written = secondsFromNow(0);
+        Cookie cookie = cookieAfterWriteAt(replica, written);
+
+        assertTrue(replica.hasWritten(request(cookie.getValue())));
+        assertSame(inSession, replica.read(request(cookie.getValue()), mongo -> mongo));
+        verify(session).advanceOperationTime(written);
+        assertEquals(WINDOW, cookie.getMaxAge());
+    }
+
+    @Test
+    public void tamperedCookiesAreIgnored() {
+        CausalSessions replica = causalSessions();
+        String value = cookieAfterWriteAt(replica, secondsFromNow(0)).getValue();
+        String[] parts = value.split("\\.");
+        String laterTime = Long.toHexString(Long.parseUnsignedLong(parts[0], 16) + (1L << 32));
+
+        assertIgnored(replica, laterTime + "." + parts[1]);
+        assertIgnored(replica, parts[0] + ".");
+        assertIgnored(replica, parts[0]);
+        assertIgnored(replica, "not a cookie");
+    }
+
+    @Test
+    public void cookiesSignedWithAnotherKeyAreIgnored() {
+        String value = cookieAfterWriteAt(causalSessions(), secondsFromNow(0)).getValue();
+        when(properties.getMongoCausalKey()).thenReturn("another key");
+
+        assertIgnored(causalSessions(), value);
+    }
+
+    @Test
+    public void expiredCookiesAreIgnored() {
+        CausalSessions replica = causalSessions();
+        String value = cookieAfterWriteAt(replica, secondsFromNow(-2 * WINDOW)).getValue();
+
+        assertIgnored(replica, value);
+    }
+
+    @Test
+    public void readsNeverWaitPastNowOnAnotherReplica() {
+        String value = cookieAfterWriteAt(causalSessions(), secondsFromNow(3600)).getValue();
+        //A replica that hasn't written anything yet
+        CausalSessions other = causalSessions();
+
+        other.read(request(value), mongo -> mongo);
+
+        long waitedFor = waitedFor().getTime() - System.currentTimeMillis() / 1000;
+        assertTrue("Waited " + waitedFor + "s ahead", waitedFor <= 10);
+    }
+
+    @Test
+    public void readsNeverWaitPastTheNewestWriteOnThisReplica() {
+        CausalSessions replica = causalSessions();
+        BsonTimestamp later = secondsFromNow(3600);
+        String value = cookieAfterWriteAt(replica, later).getValue();
+        BsonTimestamp newest = secondsFromNow(600);
+        CausalSessions other = causalSessions();
+        cookieAfterWriteAt(other, newest);
+
+        other.read(request(value), mongo -> mongo);
+
+        assertEquals(newest, waitedFor());
+    }
+
+    @Test
+    public void readsFromThePrimaryDontUseSessions() {
+        when(properties.getMongoReadPreference()).thenReturn("primary");
+        CausalSessions replica = causalSessions();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        replica.write(mongo -> mongo);
+        replica.remember(response);
+
+        assertEquals(0, response.getCookies().length);
+        verify(mongoDbFactory, never()).getSession(any(ClientSessionOptions.class));
+    }
+
+    private CausalSessions causalSessions() {
+        CausalSessions causalSessions = new CausalSessions();
+        ReflectionTestUtils.setField(causalSessions, "properties", properties);
+        ReflectionTestUtils.setField(causalSessions, "mongoDbFactory", mongoDbFactory);
+        ReflectionTestUtils.setField(causalSessions, "mongoTemplate", mongoTemplate);
+        causalSessions.init();
+        return causalSessions;
+    }
+
+    private Cookie cookieAfterWriteAt(CausalSessions causalSessions, BsonTimestamp operationTime) {
+        when(session.getOperationTime()).thenReturn(operationTime);
+        causalSessions.write(mongo -> mongo);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        causalSessions.remember(response);
+        Cookie cookie = response.getCookie(CausalSessions.COOKIE);
+        assertNotNull(cookie);
+        return cookie;
+    }
+
+    private void assertIgnored(CausalSessions causalSessions, String value) {
+        assertFalse(value, causalSessions.hasWritten(request(value)));
+        assertSame(value, mongoTemplate, causalSessions.read(request(value), mongo -> mongo));
+        verify(session, never()).advanceOperationTime(any());
+    }
+
+    private BsonTimestamp waitedFor() {
+        ArgumentCaptor<BsonTimestamp> waited = ArgumentCaptor.forClass(BsonTimestamp.class);
+        verify(session).advanceOperationTime(waited.capture());
+        return waited.getValue();
+    }
+
+    private static MockHttpServletRequest request(String cookie) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(CausalSessions.COOKIE, cookie));
+        return request;
+    }
+
+    private static BsonTimestamp secondsFromNow(int seconds) {
+        return new BsonTimestamp((int) (System.currentTimeMillis() / 1000 + seconds), 1);
+    }
+}
@@ -0,0 +1,126 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    private static final long OPEN_MILLIS = 200;
+
+    private final CircuitBreaker breaker = new CircuitBreaker("test", 2, OPEN_MILLIS, new SimpleMeterRegistry());
+
+    @Test
+    public void opensAfterConsecutiveFailures() throws Exception {
+        failCall();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        failCall();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        //Rejected without calling the dependency
+        try {
+            breaker.call(() -> {
+                throw new AssertionError("Called while open");
+            });
+            fail("Open breaker let a call through");
+        } catch (ResponseStatusException e) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+        }
+    }
+
+    @Test
+    public void successResetsTheFailureCount() throws Exception {
+        failCall();
+        assertEquals("ok", breaker.call(() -> "ok"));
+        failCall();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void answeredErrorsAreNotFailures() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            try {
+                breaker.call(() -> {
+                    throw new IllegalArgumentException("No such object");
+                });
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void closesAfterSuccessfulTrial() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        assertEquals("ok", breaker.call(() -> "ok"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void reopensAfterFailedTrial() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        //A single failure is enough while half-open
+        failCall();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void letsOneTrialThroughWhileHalfOpen() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> trial = pool.submit(() -> breaker.call(() -> {
+                started.countDown();
+                finish.await(5, TimeUnit.SECONDS);
+                return "ok";
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+            try {
+                breaker.call(() -> "second");
+                fail("Half-open breaker let a second call through");
+            } catch (ResponseStatusException expected) {
+            }
+            finish.countDown();
+            assertEquals("ok", trial.get(5, TimeUnit.SECONDS));
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void open() throws Exception {
+        failCall();
+        failCall();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private void failCall() throws Exception {
+        try {
+            breaker.call(() -> {
+                throw new IOException("Connection refused");
+            });
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ImageCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ImageCache cache;
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        KnoteProperties properties = mock(KnoteProperties.class);
+        when(properties.isImagesCacheEnabled()).thenReturn(true);
+        when(properties.getImagesCacheDir()).thenReturn(folder.getRoot().getPath());
+        when(properties.getImagesCacheMaxSize()).thenReturn(400L);
+        cache = new ImageCache();
+        ReflectionTestUtils.setField(cache, "properties", properties);
+        ReflectionTestUtils.setField(cache, "meterRegistry", new SimpleMeterRegistry());
+        cache.init();
+    }
+
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ImageCache.Fetch<InputStream> slowOpen = name -> {
+            opened.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return new ByteArrayInputStream(bytes(100));
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<ImageCache.Entry> first = pool.submit(() -> cache.get("a.png", this::stat, slowOpen));
+            assertTrue(opened.await(5, TimeUnit.SECONDS));
+            Future<ImageCache.Entry> second = pool.submit(() -> cache.get("a.png", this::stat, slowOpen));
+            Future<ImageCache.Entry> third = pool.submit(() -> cache.get("a.png", this::stat, slowOpen));
+            release.countDown();
+
+            ImageCache.Entry entry = first.get(5, TimeUnit.SECONDS);
+            assertSame(entry, second.get(5, TimeUnit.SECONDS));
+            assertSame(entry, third.get(5, TimeUnit.SECONDS));
+            assertEquals(1, fetches.get());
+            assertArrayEquals(bytes(100), Files.readAllBytes(entry.getFile()));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        for (String name : new String[]{"a", "b", "c", "d"}) {
+            load(name, 100).release();
+        }
+        //Touching a makes b the eldest
+        load("a", 100).release();
+        assertEquals(4, fetches.get());
+
+        load("e", 100).release();
+        assertEquals(5, fetches.get());
+        load("a", 100).release();
+        assertEquals(5, fetches.get());
+        load("b", 100).release();
+        assertEquals(6, fetches.get());
+    }
+
+    @Test
+    public void staysWithinSizeBudget() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            load("image-" + i, 90).release();
+        }
+        assertEquals(4, cachedFiles());
+
+        //Anything over a quarter of the cache is served without being kept
+        ImageCache.Entry large = load("large", 101);
+        assertNull(large.getFile());
+        large.release();
+        load("large", 101);
+        assertEquals(12, fetches.get());
+        assertEquals(4, cachedFiles());
+    }
+
+    @Test
+    public void keepsEvictedFileUntilReleased() throws Exception {
+        ImageCache.Entry entry = load("a", 100);
+        for (String name : new String[]{"b", "c", "d", "e"}) {
+            load(name, 100).release();
+        }
+        assertTrue(Files.exists(entry.getFile()));
+        entry.release();
+        assertFalse(Files.exists(entry.getFile()));
+    }
+
+    private ImageCache.Entry load(String name, int length) throws Exception {
+        return cache.get(name, n -> stat(length), n -> new ByteArrayInputStream(bytes(length)));
+    }
+
+    private ImageStore.Stat stat(String name) {
+        return stat(100);
+    }
+
+    private ImageStore.Stat stat(int length) {
+        fetches.incrementAndGet();
+        return new ImageStore.Stat(length, "image/png", "etag", 0);
+    }
+
+    private long cachedFiles() throws Exception {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.count();
+        }
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+}
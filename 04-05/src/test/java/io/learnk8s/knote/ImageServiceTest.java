@@ -0,0 +1,158 @@
+package io.learnk8s.knote;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ImageServiceTest {
+
+    //Whole seconds, like HTTP dates
+    private static final long LAST_MODIFIED = 1_500_000_000_000L;
+
+    private final KnoteProperties properties = mock(KnoteProperties.class);
+    private final ImageService imageService = new ImageService();
+    private final ImageService.Image image = new ImageService.Image(
+            new ImageCache.Entry(1000, "image/png", "abc", LAST_MODIFIED, null, false), "abc.png", true, "minio");
+
+    @Before
+    public void setUp() {
+        when(properties.getImagesMaxAge()).thenReturn(31536000L);
+        ReflectionTestUtils.setField(imageService, "properties", properties);
+    }
+
+    @Test
+    public void sendsTheWholeImageWithItsValidators() {
+        ImageService.Response response = respond(new HttpHeaders());
+
+        assertEquals(HttpStatus.OK, response.getStatus());
+        assertEquals("\"abc\"", response.getHeaders().getETag());
+        assertEquals(LAST_MODIFIED, response.getHeaders().getLastModified());
+        assertEquals(1000, response.getHeaders().getContentLength());
+        assertTrue(response.getHeaders().getCacheControl().endsWith("immutable"));
+        assertEquals(0, response.getStart());
+        assertEquals(1000, response.getCount());
+        assertTrue(response.hasBody());
+        assertFalse(imageService.respond(image, HttpMethod.HEAD, new HttpHeaders()).hasBody());
+    }
+
+    @Test
+    public void answersNotModifiedForTheSameTagOrAnOlderDate() {
+        HttpHeaders sameTag = new HttpHeaders();
+        sameTag.setIfNoneMatch("W/\"abc\"");
+        assertNotModified(respond(sameTag));
+
+        HttpHeaders anyTag = new HttpHeaders();
+        anyTag.setIfNoneMatch("*");
+        assertNotModified(respond(anyTag));
+
+        HttpHeaders sameDate = new HttpHeaders();
+        sameDate.setIfModifiedSince(LAST_MODIFIED);
+        assertNotModified(respond(sameDate));
+
+        //If-None-Match wins over If-Modified-Since
+        HttpHeaders otherTag = new HttpHeaders();
+        otherTag.setIfNoneMatch("\"other\"");
+        otherTag.setIfModifiedSince(LAST_MODIFIED);
+        assertEquals(HttpStatus.OK, respond(otherTag).getStatus());
+
+        HttpHeaders olderDate = new HttpHeaders();
+        olderDate.setIfModifiedSince(LAST_MODIFIED - 1000);
+        assertEquals(HttpStatus.OK, respond(olderDate).getStatus());
+    }
+
+    @Test
+    public void failsThePreconditionWhenChangedSince() {
+        HttpHeaders before = new HttpHeaders();
+        before.setIfUnmodifiedSince(LAST_MODIFIED - 1000);
+        ImageService.Response response = respond(before);
+        assertEquals(HttpStatus.PRECONDITION_FAILED, response.getStatus());
+        assertFalse(response.hasBody());
+
+        HttpHeaders same = new HttpHeaders();
+        same.setIfUnmodifiedSince(LAST_MODIFIED);
+        assertEquals(HttpStatus.OK, respond(same).getStatus());
+
+        HttpHeaders unparsable = new HttpHeaders();
+        unparsable.set(HttpHeaders.IF_UNMODIFIED_SINCE, "yesterday");
+        assertEquals(HttpStatus.OK, respond(unparsable).getStatus());
+    }
+
+    @Test
+    public void sendsASingleRange() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=100-199");
+        ImageService.Response response = respond(headers);
+
+        assertEquals(HttpStatus.PARTIAL_CONTENT, response.getStatus());
+        assertEquals("bytes 100-199/1000", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertEquals(100, response.getHeaders().getContentLength());
+        assertEquals(100, response.getStart());
+        assertEquals(100, response.getCount());
+
+        HttpHeaders suffix = new HttpHeaders();
+        suffix.set(HttpHeaders.RANGE, "bytes=-10");
+        assertEquals("bytes 990-999/1000", respond(suffix).getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    public void sendsTheWholeImageForSeveralOrBrokenRanges() {
+        HttpHeaders several = new HttpHeaders();
+        several.set(HttpHeaders.RANGE, "bytes=0-1,5-6");
+        assertEquals(HttpStatus.OK, respond(several).getStatus());
+
+        HttpHeaders broken = new HttpHeaders();
+        broken.set(HttpHeaders.RANGE, "pages=1");
+        assertEquals(HttpStatus.OK, respond(broken).getStatus());
+    }
+
+    @Test
+    public void answersRangeNotSatisfiablePastTheEnd() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=1000-");
+        ImageService.Response response = respond(headers);
+
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+        assertEquals("bytes */1000", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertFalse(response.hasBody());
+    }
+
+    @Test
+    public void onlySendsTheRangeIfTheImageIsTheOneTheClientHas() {
+        HttpHeaders sameTag = new HttpHeaders();
+        sameTag.set(HttpHeaders.RANGE, "bytes=0-9");
+        sameTag.set(HttpHeaders.IF_RANGE, "\"abc\"");
+        assertEquals(HttpStatus.PARTIAL_CONTENT, respond(sameTag).getStatus());
+
+        HttpHeaders otherTag = new HttpHeaders();
+        otherTag.set(HttpHeaders.RANGE, "bytes=0-9");
+        otherTag.set(HttpHeaders.IF_RANGE, "\"other\"");
+        ImageService.Response whole = respond(otherTag);
+        assertEquals(HttpStatus.OK, whole.getStatus());
+        assertNull(whole.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+
+        HttpHeaders sameDate = new HttpHeaders();
+        sameDate.set(HttpHeaders.RANGE, "bytes=0-9");
+        sameDate.setDate(HttpHeaders.IF_RANGE, LAST_MODIFIED);
+        assertEquals(HttpStatus.PARTIAL_CONTENT, respond(sameDate).getStatus());
+    }
+
+    private ImageService.Response respond(HttpHeaders request) {
+        return imageService.respond(image, HttpMethod.GET, request);
+    }
+
+    private static void assertNotModified(ImageService.Response response) {
+        assertEquals(HttpStatus.NOT_MODIFIED, response.getStatus());
+        assertEquals("\"abc\"", response.getHeaders().getETag());
+        assertFalse(response.hasBody());
+    }
+}
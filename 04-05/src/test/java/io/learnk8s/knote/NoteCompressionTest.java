@@ -0,0 +1,103 @@
+package io.learnk8s.knote;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class NoteCompressionTest {
+
+    private static final String HTML = repeat("<p>Kubernetes runs <strong>containers</strong> for you.</p>\n", 50);
+
+    private final KnoteProperties properties = mock(KnoteProperties.class);
+    private NoteCompression compression;
+
+    @Before
+    public void setUp() {
+        when(properties.isNotesCompressionEnabled()).thenReturn(true);
+        when(properties.getNotesCompressionMinSize()).thenReturn(256);
+        compression = new NoteCompression();
+        ReflectionTestUtils.setField(compression, "properties", properties);
+        ReflectionTestUtils.setField(compression, "meterRegistry", new SimpleMeterRegistry());
+        compression.init();
+    }
+
+    @Test
+    public void roundTripsCompressedNotes() {
+        Note note = new Note(new ObjectId().toHexString(), HTML);
+        note.setMarkdown(repeat("Kubernetes runs **containers** for you.\n\n", 50));
+        note.setRenderVersion(2);
+        note.setCreatedAt(Instant.ofEpochMilli(1700000000000L));
+
+        Document document = compression.writer().convert(note);
+        assertTrue(document.get("_id") instanceof ObjectId);
+        Binary description = (Binary) document.get("description");
+        assertEquals(NoteCompression.DEFLATED, description.getType());
+        assertTrue(description.length() < HTML.length());
+
+        Note read = compression.reader().convert(document);
+        assertEquals(note.getId(), read.getId());
+        assertEquals(note.getDescription(), read.getDescription());
+        assertEquals(note.getMarkdown(), read.getMarkdown());
+        assertEquals(note.getRenderVersion(), read.getRenderVersion());
+        assertEquals(note.getCreatedAt(), read.getCreatedAt());
+    }
+
+    @Test
+    public void roundTripsMultibyteText() {
+        String text = repeat("Grüße aus Zürich — 日本語のノート 🚢\n", 40);
+
+        assertEquals(text, NoteCompression.decode(compression.encode(text)));
+    }
+
+    @Test
+    public void readsLegacyPlainDocuments() {
+        ObjectId id = new ObjectId();
+        Document document = new Document("_id", id)
+                .append("description", "<p>Stored before compression</p>")
+                .append("createdAt", new Date(1700000000000L));
+
+        Note read = compression.reader().convert(document);
+        assertEquals(id.toHexString(), read.getId());
+        assertEquals("<p>Stored before compression</p>", read.getDescription());
+        assertNull(read.getMarkdown());
+        assertNull(read.getRenderVersion());
+        assertEquals(Instant.ofEpochMilli(1700000000000L), read.getCreatedAt());
+    }
+
+    @Test
+    public void keepsShortBodiesPlain() {
+        assertEquals("<p>Short</p>", compression.encode("<p>Short</p>"));
+    }
+
+    @Test
+    public void keepsBodiesPlainWhenDisabled() {
+        when(properties.isNotesCompressionEnabled()).thenReturn(false);
+
+        assertEquals(HTML, compression.encode(HTML));
+        //Notes compressed earlier stay readable
+        assertEquals(HTML, NoteCompression.decode(new Binary(NoteCompression.DEFLATED,
+                NoteCompression.deflate(HTML.getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            repeated.append(text);
+        }
+        return repeated.toString();
+    }
+}
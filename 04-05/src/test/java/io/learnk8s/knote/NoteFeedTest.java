@@ -0,0 +1,184 @@
+package io.learnk8s.knote;
+
+import freemarker.template.Configuration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class NoteFeedTest {
+
+    private final KnoteProperties properties = mock(KnoteProperties.class);
+    private final NotesRepository notesRepository = mock(NotesRepository.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final NoteFeed feed = new NoteFeed();
+
+    @Before
+    public void setUp() {
+        when(properties.isNotesFeedEnabled()).thenReturn(true);
+        when(properties.getNotesFeedMaxClients()).thenReturn(10);
+        when(properties.getNotesFeedHeartbeat()).thenReturn(60000L);
+        when(properties.getNotesFeedSendTimeout()).thenReturn(100L);
+        when(properties.getNotesPageSize()).thenReturn(2);
+
+        Configuration freemarker = new Configuration(Configuration.VERSION_2_3_28);
+        freemarker.setClassForTemplateLoading(NoteFeedTest.class, "/templates/");
+        ReflectionTestUtils.setField(feed, "properties", properties);
+        ReflectionTestUtils.setField(feed, "notesRepository", notesRepository);
+        ReflectionTestUtils.setField(feed, "freemarker", freemarker);
+        ReflectionTestUtils.setField(feed, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(feed, "changeListener", mock(NotesChangeListener.class));
+        feed.init();
+    }
+
+    @After
+    public void tearDown() {
+        feed.shutdown();
+    }
+
+    @Test
+    public void sendsMissedNotesThenNewOnes() throws Exception {
+        ObjectId after = new ObjectId();
+        Note first = note("first");
+        Note second = note("second");
+        when(notesRepository.findByIdGreaterThanOrderByIdAsc(eq(after), any(Pageable.class)))
+                .thenReturn(Arrays.asList(first, second));
+        Page page = new Page(null);
+
+        feed.subscribe(page, after.toHexString());
+        //Sent while subscribing, before the response starts
+        assertEquals(2, page.events.size());
+        assertTrue(page.events.get(0).contains("id:" + first.getId()));
+        assertTrue(page.events.get(1).contains("id:" + second.getId()));
+
+        Note third = note("third");
+        feed.onNoteSaved(new NoteSavedEvent(third, false, true));
+        await(() -> page.events.size() == 3);
+        assertTrue(page.events.get(2).contains("id:" + third.getId()));
+        assertTrue(page.events.get(2).contains("<p>third</p>"));
+    }
+
+    @Test
+    public void asksForAReloadWhenMoreThanAPageWasMissed() {
+        ObjectId after = new ObjectId();
+        when(notesRepository.findByIdGreaterThanOrderByIdAsc(eq(after), any(Pageable.class)))
+                .thenReturn(Arrays.asList(note("1"), note("2"), note("3")));
+        Page page = new Page(null);
+
+        feed.subscribe(page, after.toHexString());
+
+        assertEquals(1, page.events.size());
+        assertTrue(page.events.get(0).contains("event:reload"));
+        assertTrue(page.completed);
+        assertEquals(0, clients());
+    }
+
+    @Test
+    public void onlySendsNewlyPublishedNotes() throws Exception {
+        Page page = new Page(null);
+        feed.subscribe(page, null);
+
+        feed.onNoteSaved(new NoteSavedEvent(note("imported"), false, false));
+        //With the change stream off, remote events can't happen, so only local ones are sent
+        feed.onNoteSaved(new NoteSavedEvent(note("remote"), true, true));
+        feed.onNoteSaved(new NoteSavedEvent(note("published"), false, true));
+
+        await(() -> page.events.size() == 1);
+        Thread.sleep(100);
+        assertEquals(1, page.events.size());
+        assertTrue(page.events.get(0).contains("<p>published</p>"));
+    }
+
+    @Test
+    public void dropsPagesThatStopReading() throws Exception {
+        CountDownLatch unblock = new CountDownLatch(1);
+        Page stuck = new Page(unblock);
+        Page reading = new Page(null);
+        feed.subscribe(stuck, null);
+        feed.subscribe(reading, null);
+
+        feed.onNoteSaved(new NoteSavedEvent(note("first"), false, true));
+        await(() -> reading.events.size() == 1);
+        //Longer than the send timeout
+        Thread.sleep(200);
+        feed.onNoteSaved(new NoteSavedEvent(note("second"), false, true));
+
+        await(() -> reading.events.size() == 2);
+        assertEquals(1, clients());
+        assertEquals(1, meterRegistry.counter("knote.feed.dropped").count(), 0);
+
+        //Once the socket gives up the stuck page is closed
+        unblock.countDown();
+        await(() -> stuck.completed);
+        assertEquals(1, stuck.events.size());
+    }
+
+    private int clients() {
+        return (int) meterRegistry.get("knote.feed.clients").gauge().value();
+    }
+
+    private static Note note(String description) {
+        return new Note(new ObjectId().toHexString(), description);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /**
+     * A page that keeps what it is sent as text, and can be made to stop reading.
+     */
+    private static class Page extends SseEmitter {
+
+        private final List<String> events = new CopyOnWriteArrayList<>();
+        private final CountDownLatch reading;
+        private volatile boolean completed;
+
+        Page(CountDownLatch reading) {
+            this.reading = reading;
+        }
+
+        @Override
+        public void send(SseEventBuilder event) throws IOException {
+            if (reading != null) {
+                try {
+                    reading.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            events.add(event.build().stream()
+                    .map(data -> String.valueOf(data.getData()))
+                    .collect(Collectors.joining()));
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+            super.complete();
+        }
+    }
+}
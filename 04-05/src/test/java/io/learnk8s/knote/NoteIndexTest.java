@@ -0,0 +1,69 @@
+package io.learnk8s.knote;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NoteIndexTest {
+
+    private NoteIndex index;
+
+    @Before
+    public void setUp() {
+        index = new NoteIndex();
+    }
+
+    @Test
+    public void ranksByTermFrequencyAndRarity() {
+        index.add(new Note("1", "<p>kubernetes deployment</p>"));
+        index.add(new Note("2", "<p>kubernetes kubernetes kubernetes</p>"));
+        index.add(new Note("3", "<p>docker image</p>"));
+        index.add(new Note("4", "<p>kubernetes docker</p>"));
+
+        assertEquals(Arrays.asList("2", "4", "1"), index.search("kubernetes", 0, 10).getIds());
+        //The rare term outweighs the common one
+        assertEquals("1", index.search("kubernetes deployment", 0, 10).getIds().get(0));
+        assertEquals(Collections.emptyList(), index.search("helm", 0, 10).getIds());
+    }
+
+    @Test
+    public void ignoresMarkupAndCase() {
+        index.add(new Note("1", "<p><strong>Kubernetes</strong> &amp; Docker</p>"));
+
+        assertEquals(Collections.singletonList("1"), index.search("KUBERNETES", 0, 10).getIds());
+        assertEquals(Collections.emptyList(), index.search("strong", 0, 10).getIds());
+        assertEquals(Collections.emptyList(), index.search("amp", 0, 10).getIds());
+    }
+
+    @Test
+    public void replacesTermsOnUpdate() {
+        index.add(new Note("1", "<p>kubernetes</p>"));
+        index.add(new Note("1", "<p>docker</p>"));
+
+        assertEquals(0, index.search("kubernetes", 0, 10).getTotal());
+        assertEquals(Collections.singletonList("1"), index.search("docker", 0, 10).getIds());
+    }
+
+    @Test
+    public void pagesResults() {
+        for (int i = 0; i < 5; i++) {
+            index.add(new Note("id" + i, "<p>note</p>"));
+        }
+
+        NoteIndex.Result first = index.search("note", 0, 2);
+        assertEquals(Arrays.asList("id4", "id3"), first.getIds());
+        assertEquals(5, first.getTotal());
+        assertEquals(Arrays.asList("id2", "id1"), index.search("note", 1, 2).getIds());
+        assertEquals(Collections.singletonList("id0"), index.search("note", 2, 2).getIds());
+        assertTrue(index.search("note", 3, 2).getIds().isEmpty());
+        //Would overflow an int and land back inside the results
+        NoteIndex.Result past = index.search("note", Integer.MAX_VALUE, 10);
+        assertTrue(past.getIds().isEmpty());
+        assertEquals(5, past.getTotal());
+    }
+}
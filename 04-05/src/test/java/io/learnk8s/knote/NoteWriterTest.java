@@ -0,0 +1,169 @@
+package io.learnk8s.knote;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NoteWriterTest {
+
+    private final KnoteProperties properties = mock(KnoteProperties.class);
+    private final MongoOperations mongo = mock(MongoOperations.class);
+    private final BulkOperations bulk = mock(BulkOperations.class);
+    private final List<List<Note>> batches = Collections.synchronizedList(new ArrayList<>());
+    private NoteWriter writer;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        when(properties.isNotesWriteBehindEnabled()).thenReturn(true);
+        when(properties.getNotesWriteBehindBatchSize()).thenReturn(3);
+        when(properties.getNotesWriteBehindLinger()).thenReturn(1000L);
+        when(properties.getNotesWriteBehindTimeout()).thenReturn(5000L);
+
+        CausalSessions causalSessions = mock(CausalSessions.class);
+        when(causalSessions.write(any())).thenAnswer(invocation ->
+                ((Function<MongoOperations, Object>) invocation.getArgument(0)).apply(mongo));
+        when(mongo.bulkOps(eq(BulkOperations.BulkMode.UNORDERED), eq(Note.class))).thenReturn(bulk);
+        when(bulk.insert(anyList())).thenAnswer(invocation -> {
+            batches.add(new ArrayList<>((List<Note>) invocation.getArgument(0)));
+            return bulk;
+        });
+        when(mongo.insert(any(Note.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        writer = new NoteWriter();
+        ReflectionTestUtils.setField(writer, "properties", properties);
+        ReflectionTestUtils.setField(writer, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(writer, "causalSessions", causalSessions);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        writer.shutdown();
+    }
+
+    @Test
+    public void writesFullBatchesWithoutLingering() throws Exception {
+        writer.init();
+        List<CompletableFuture<Note>> saved = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            saved.add(writer.submit(new Note(null, "note " + i)));
+        }
+
+        //Well under the linger, as the batch is full
+        for (CompletableFuture<Note> note : saved) {
+            assertNotNull(note.get(500, TimeUnit.MILLISECONDS).getId());
+        }
+        assertEquals(1, batches.size());
+        assertEquals(3, batches.get(0).size());
+        verify(mongo, never()).insert(any(Note.class));
+    }
+
+    @Test
+    public void flushesQueuedNotesOnShutdown() throws Exception {
+        writer.init();
+        CompletableFuture<Note> first = writer.submit(new Note(null, "first"));
+        CompletableFuture<Note> second = writer.submit(new Note(null, "second"));
+
+        writer.shutdown();
+
+        assertTrue(first.isDone() && second.isDone());
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+    }
+
+    @Test
+    public void writesDirectlyWhenDisabled() {
+        when(properties.isNotesWriteBehindEnabled()).thenReturn(false);
+        writer.init();
+        Note note = new Note(null, "note");
+
+        assertSame(note, writer.save(note));
+        verify(mongo).insert(note);
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void writesDirectlyAfterShutdown() throws Exception {
+        writer.init();
+        writer.shutdown();
+        Note note = new Note(null, "note");
+
+        assertSame(note, writer.save(note));
+        verify(mongo).insert(note);
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void answers503WhenTheBatchTakesTooLong() throws Exception {
+        when(properties.getNotesWriteBehindBatchSize()).thenReturn(1);
+        when(properties.getNotesWriteBehindTimeout()).thenReturn(100L);
+        CountDownLatch acknowledged = new CountDownLatch(1);
+        when(bulk.execute()).thenAnswer(invocation -> {
+            acknowledged.await(5, TimeUnit.SECONDS);
+            return null;
+        });
+        writer.init();
+
+        try {
+            writer.save(new Note(null, "slow"));
+            fail("Save waited past its timeout");
+        } catch (ResponseStatusException e) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+        } finally {
+            acknowledged.countDown();
+        }
+    }
+
+    @Test
+    public void failsOnlyTheNotesMongoRejected() throws Exception {
+        BulkWriteError duplicate = new BulkWriteError(11000, "duplicate key", new BasicDBObject(), 1);
+        BulkOperationException rejected = mock(BulkOperationException.class);
+        when(rejected.getErrors()).thenReturn(Collections.singletonList(duplicate));
+        when(bulk.execute()).thenThrow(rejected);
+        writer.init();
+        List<CompletableFuture<Note>> saved = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            saved.add(writer.submit(new Note(null, "note " + i)));
+        }
+
+        assertNotNull(saved.get(0).get(5, TimeUnit.SECONDS));
+        assertNotNull(saved.get(2).get(5, TimeUnit.SECONDS));
+        try {
+            saved.get(1).get(5, TimeUnit.SECONDS);
+            fail("Rejected note was reported as saved");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BulkOperationException);
+        }
+    }
+}
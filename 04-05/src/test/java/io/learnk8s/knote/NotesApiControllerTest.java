@@ -0,0 +1,176 @@
+package io.learnk8s.knote;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class NotesApiControllerTest {
+
+    private final NotesRepository notesRepository = mock(NotesRepository.class);
+    private final KnoteProperties properties = mock(KnoteProperties.class);
+    private final ApplicationEventPublisher publisher = mock(ApplicationEventPublisher.class);
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final List<List<Note>> inserted = new ArrayList<>();
+    private MockMvc mvc;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        when(properties.getNotesPageSize()).thenReturn(20);
+        when(properties.getNotesImportBatchSize()).thenReturn(2);
+        when(notesRepository.insert(anyList())).thenAnswer(invocation -> {
+            List<Note> batch = new ArrayList<>((List<Note>) invocation.getArgument(0));
+            inserted.add(batch);
+            return batch;
+        });
+
+        NotesApiController controller = new NotesApiController();
+        ReflectionTestUtils.setField(controller, "notesRepository", notesRepository);
+        ReflectionTestUtils.setField(controller, "properties", properties);
+        ReflectionTestUtils.setField(controller, "publisher", publisher);
+        ReflectionTestUtils.setField(controller, "objectMapper", objectMapper);
+        ReflectionTestUtils.setField(controller, "noteRenderer", mock(NoteRenderer.class));
+        mvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    @Test
+    public void exportsOneNotePerLineNewestFirst() throws Exception {
+        Note older = note("older");
+        Note newer = note("newer");
+        when(notesRepository.streamAllByOrderByIdDesc()).thenReturn(Stream.of(newer, older));
+
+        String body = mvc.perform(get("/api/notes/export"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(NotesApiController.NDJSON))
+                .andReturn().getResponse().getContentAsString();
+
+        String[] lines = body.split("\n");
+        assertEquals(2, lines.length);
+        assertEquals(newer.getId(), objectMapper.readValue(lines[0], Note.class).getId());
+        assertEquals("older", objectMapper.readValue(lines[1], Note.class).getDescription());
+    }
+
+    @Test
+    public void importsInBatchesAndGivesNotesIds() throws Exception {
+        Note kept = note("kept");
+        String body = objectMapper.writeValueAsString(kept) + "\n"
+                + "\n"
+                + "{\"description\":\"second\"}\n"
+                + "{\"description\":\"third\"}";
+
+        mvc.perform(post("/api/notes/import").contentType(NotesApiController.NDJSON).content(body))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.imported").value(3));
+
+        assertEquals(2, inserted.size());
+        assertEquals(2, inserted.get(0).size());
+        assertEquals(1, inserted.get(1).size());
+        assertEquals(kept.getId(), inserted.get(0).get(0).getId());
+        assertTrue(ObjectId.isValid(inserted.get(0).get(1).getId()));
+        //Imported notes are not news for the live feed
+        ArgumentCaptor<NoteSavedEvent> events = ArgumentCaptor.forClass(NoteSavedEvent.class);
+        verify(publisher, times(3)).publishEvent(events.capture());
+        events.getAllValues().forEach(event -> assertTrue(!event.isPublished()));
+    }
+
+    @Test
+    public void rejectsLinesThatAreNotNotes() throws Exception {
+        String body = "{\"description\":\"first\"}\n"
+                + "{\"description\":\n"
+                + "{\"markdown\":null}\n"
+                + "{\"id\":\"not an id\",\"description\":\"fourth\"}";
+
+        mvc.perform(post("/api/notes/import").contentType(NotesApiController.NDJSON).content(body))
+                .andExpect(status().isBadRequest())
+                .andExpect(status().reason("Line 2 is not a note"));
+        mvc.perform(post("/api/notes/import").contentType(NotesApiController.NDJSON).content("{\"markdown\":null}"))
+                .andExpect(status().reason("Line 1 has no description"));
+        mvc.perform(post("/api/notes/import").contentType(NotesApiController.NDJSON)
+                .content("{\"id\":\"not an id\",\"description\":\"x\"}"))
+                .andExpect(status().reason("Line 1 has an invalid id"));
+        verify(notesRepository, never()).insert(anyList());
+    }
+
+    @Test
+    public void answersConflictForNotesThatExist() throws Exception {
+        when(notesRepository.insert(anyList())).thenThrow(new DuplicateKeyException("E11000"));
+
+        mvc.perform(post("/api/notes/import").contentType(NotesApiController.NDJSON).content("{\"description\":\"x\"}"))
+                .andExpect(status().isConflict());
+    }
+
+    @Test
+    public void listAnswersNotModifiedWhileTheCollectionIsTheSame() throws Exception {
+        Note newest = note("newest");
+        when(notesRepository.findFirstByOrderByIdDesc()).thenReturn(newest);
+        when(notesRepository.count()).thenReturn(1L);
+        when(notesRepository.findAllByOrderByIdDesc(any(Pageable.class))).thenReturn(Arrays.asList(newest));
+
+        String etag = mvc.perform(get("/api/notes"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.notes[0].id").value(newest.getId()))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        mvc.perform(get("/api/notes").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified());
+        verify(notesRepository, times(1)).findAllByOrderByIdDesc(any(Pageable.class));
+
+        //A new note changes the tag
+        when(notesRepository.findFirstByOrderByIdDesc()).thenReturn(note("newer"));
+        when(notesRepository.count()).thenReturn(2L);
+        String changed = mvc.perform(get("/api/notes").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotEquals(etag, changed);
+    }
+
+    @Test
+    public void listPagesByTheLastId() throws Exception {
+        Note first = note("first");
+        Note second = note("second");
+        when(notesRepository.findAllByOrderByIdDesc(any(Pageable.class))).thenReturn(Arrays.asList(second, first));
+
+        mvc.perform(get("/api/notes").param("limit", "1"))
+                .andExpect(jsonPath("$.notes.length()").value(1))
+                .andExpect(jsonPath("$.next").value(second.getId()));
+        mvc.perform(get("/api/notes").param("limit", "0"))
+                .andExpect(status().isBadRequest());
+        mvc.perform(get("/api/notes").param("before", "not an id"))
+                .andExpect(status().isBadRequest());
+    }
+
+    private static Note note(String description) {
+        return new Note(new ObjectId().toHexString(), description);
+    }
+}